@@ -10,7 +10,9 @@
   "
   (:use [cascalog.api])
   (require [clojure.math.numeric-tower :as math]
-           [cascalog.ops :as c]))
+           [cascalog.ops :as c])
+  (:import [java.io ByteArrayInputStream ByteArrayOutputStream DataInput
+            DataInputStream DataOutput DataOutputStream]))
 
 ;; Exact radius of the Earth in meters for the WGS84 datum.
 (def radius 6378137)
@@ -165,19 +167,100 @@
 (defn vec->arr-str
   "Format vector as string array format for PostgreSQL."
   [v]
-  (-> (str v)
-      (clojure.string/replace "[" "\"{")
-      (clojure.string/replace "]" "}\"")
-      (clojure.string/replace " " ",")))
+  (str "\"{" (clojure.string/join "," v) "}\""))
+
+(defn- parse-number
+  "Parses `s` as a long, or as a double if it isn't an integer."
+  [^String s]
+  (try (Long/parseLong s)
+       (catch NumberFormatException _
+         (Double/parseDouble s))))
 
 (defn arr-str->vec
-  "Convert PostgreSQL array string to vector. Reverses `array-ify`."
-  [s]
-  (-> s
-      (clojure.string/replace "\"{" "[")
-      (clojure.string/replace "}\"" "]")
-      (clojure.string/replace "," " ")
-      (read-string)))
+  "Convert PostgreSQL array string to vector. Reverses `vec->arr-str`,
+  with or without the surrounding quotes, without going through the
+  Clojure reader."
+  [^String s]
+  (let [body (subs s (inc (.indexOf s "{")) (.lastIndexOf s "}"))]
+    (if (empty? body)
+      []
+      (mapv parse-number (clojure.string/split body #",")))))
+
+;; ### Binary Tile Counts
+;;
+;; A compact alternative to the PostgreSQL array strings above for
+;; exporting and reloading tile tables. Each tile's periods and counts
+;; are written as zigzag varints, with the (sorted) periods stored as
+;; deltas from their predecessor, so a typical tile takes a few bytes
+;; per period and decoding involves no string processing. FormaWebsite
+;; writes its tile table this way with the "packed" format, and
+;; FormaWebsiteUpdate reads it back.
+
+(defn- write-varint!
+  "Writes `n` to `out` as a zigzag-encoded base-128 varint."
+  [^DataOutput out n]
+  (let [n (long n)]
+    (loop [v (bit-xor (bit-shift-left n 1) (bit-shift-right n 63))]
+      (if (zero? (bit-and v -128))
+        (.writeByte out (int v))
+        (do (.writeByte out (int (bit-or (bit-and v 127) 128)))
+            (recur (bit-and (bit-shift-right v 7) 0x1FFFFFFFFFFFFFF)))))))
+
+(defn- read-varint
+  "Reads a varint written by `write-varint!` from `in`."
+  ^long [^DataInput in]
+  (loop [shift 0, v 0]
+    (let [b (long (.readByte in))
+          v (bit-or v (bit-shift-left (bit-and b 127) shift))]
+      (if (neg? b)
+        (recur (+ shift 7) v)
+        (bit-xor (bit-and (bit-shift-right v 1) Long/MAX_VALUE)
+                 (- (bit-and v 1)))))))
+
+(defn write-period-counts!
+  "Writes the sorted `periods` of a tile and their `counts` to `out`:
+  the number of periods, the period deltas and then the counts."
+  [^DataOutput out periods counts]
+  {:pre [(= (count periods) (count counts))]}
+  (write-varint! out (count periods))
+  (reduce (fn [prev p]
+            (write-varint! out (- p prev))
+            p)
+          0 periods)
+  (doseq [ct counts]
+    (write-varint! out ct)))
+
+(defn read-period-counts
+  "Reads `[periods counts]` written by `write-period-counts!` from `in`."
+  [^DataInput in]
+  (let [n (read-varint in)
+        periods (loop [i 0, prev 0, acc (transient [])]
+                  (if (< i n)
+                    (let [p (+ prev (read-varint in))]
+                      (recur (inc i) p (conj! acc p)))
+                    (persistent! acc)))
+        counts (loop [i 0, acc (transient [])]
+                 (if (< i n)
+                   (recur (inc i) (conj! acc (read-varint in)))
+                   (persistent! acc)))]
+    [periods counts]))
+
+(defn pack-period-counts
+  "Returns the periods and counts of a tile encoded as a byte array.
+
+   Usage:
+     (vec (pack-period-counts [71 72] [2 1]))
+     ;=> [4 -114 1 2 4 2]"
+  [periods counts]
+  (let [bytes (ByteArrayOutputStream.)]
+    (with-open [out (DataOutputStream. bytes)]
+      (write-period-counts! out periods counts))
+    (.toByteArray bytes)))
+
+(defn unpack-period-counts
+  "Reverses `pack-period-counts`, returning `[periods counts]`."
+  [^bytes packed]
+  (read-period-counts (DataInputStream. (ByteArrayInputStream. packed))))
 
 (defn zoom-out
   "Calculate x or y value at next zoom level."
@@ -210,6 +293,34 @@
       (gen-tiles-mapcat ?x ?y ?z min-z :> ?x2 ?y2 ?z2)
       (c/count ?count)))
 
+(defn rollup-zoom
+  "Cascalog query that rolls the per-period tile counts in `src`, all at
+  one zoom level, up into counts for their parent tiles at the next
+  zoom level out. `c/sum` aggregates partially on the map side."
+  [src]
+  (<- [?x2 ?y2 ?z2 ?period ?count]
+      (src ?x ?y ?z ?period ?n)
+      (zoom-out ?x :> ?x2)
+      (zoom-out ?y :> ?y2)
+      (dec ?z :> ?z2)
+      (c/sum ?n :> ?count)))
+
+(defn gen-zoom-pyramid
+  "Equivalent of `gen-all-zooms` for a source of `xyz-period` tuples
+  at zoom level `max-z`. Tuples are counted once at `max-z`, and each
+  coarser level through `min-z` is rolled up from the counts of the
+  level above it, rather than emitting every pixel at every zoom
+  level."
+  [src max-z min-z]
+  {:pre [(>= max-z min-z)]}
+  (let [finest (<- [?x ?y ?z ?period ?count]
+                   (src ?x ?y ?z ?period)
+                   (c/count ?count))
+        levels (take (inc (- max-z min-z)) (iterate rollup-zoom finest))]
+    (if (next levels)
+      (apply combine levels)
+      finest)))
+
 (defn agg-periods-counts
   "Cascalog query aggregates periods and counts in long form into vectors.
 
@@ -228,3 +339,42 @@
       (split-vecs ?periods-counts :> ?periods ?counts)
       (vec->arr-str ?periods :> ?periods-arr)
       (vec->arr-str ?counts :> ?counts-arr)))
+
+(defmapcatop expand-periods-counts
+  "Expands the PostgreSQL array strings of one tile table row into a
+  `[period count]` tuple per period."
+  [periods-arr counts-arr]
+  (map vector (arr-str->vec periods-arr) (arr-str->vec counts-arr)))
+
+(defn tile-table->long
+  "Reverses `agg-periods-counts`, returning the periods and counts of
+  each tile in `src` in long form."
+  [src]
+  (<- [?x ?y ?z ?period ?count]
+      (src ?x ?y ?z ?periods-arr ?counts-arr)
+      (expand-periods-counts ?periods-arr ?counts-arr :> ?period ?count)))
+
+(defn agg-periods-counts-packed
+  "Like `agg-periods-counts`, but encodes each tile's periods and
+  counts with `pack-period-counts` rather than as PostgreSQL array
+  strings."
+  [src]
+  (<- [?x ?y ?z ?packed]
+      (src ?x ?y ?z ?period ?count)
+      (agg-sort-by-date ?period ?count :> ?periods-counts)
+      (split-vecs ?periods-counts :> ?periods ?counts)
+      (pack-period-counts ?periods ?counts :> ?packed)))
+
+(defmapcatop expand-packed-counts
+  "Expands the packed periods and counts of one tile table row into a
+  `[period count]` tuple per period."
+  [packed]
+  (apply map vector (unpack-period-counts packed)))
+
+(defn packed-tile-table->long
+  "Reverses `agg-periods-counts-packed`, returning the periods and
+  counts of each tile in `src` in long form."
+  [src]
+  (<- [?x ?y ?z ?period ?count]
+      (src ?x ?y ?z ?packed)
+      (expand-packed-counts ?packed :> ?period ?count)))
@@ -5,14 +5,17 @@
 
   /api/{iso}/{year}"
   (:use cascalog.api
-        [forma.source.gadmiso :only (gadm2->iso)]
-        [forma.hadoop.jobs.postprocess :only (first-hit)])
+        [forma.source.gadmiso :only (gadm2->iso)])
   (:require [cascalog.ops :as c]
             [forma.postprocess.output :as o]
             [forma.reproject :as r]
             [forma.date-time :as date]
             [forma.utils :as u]
-            [forma.hadoop.predicate :as p]))
+            [forma.hadoop.predicate :as p]
+            [cascalog.conf :as conf]
+            [hadoop-util.core :as hadoop])
+  (:import [java.io DataInputStream DataOutputStream]
+           [org.apache.hadoop.fs Path]))
 
 (defmapcatop wide->long
   "Convert a series from wide to long form.
@@ -32,32 +35,27 @@
 (defn get-hit-val
   "Get value of the first hit in a time series."
   [thresh series]
-  (let [first-hit-idx (first-hit thresh series)]
-    (if (nil? first-hit-idx)
-      nil
-      (nth series first-hit-idx))))
+  (second (o/crossing thresh series)))
 
 (defn get-hit-period
   "Get the period for the first hit in the time series."
   [start-idx thresh series]
-  (let [first-hit-idx (first-hit thresh series)]
-    (if (nil? first-hit-idx)
-      nil
-      (+ start-idx first-hit-idx))))
+  (when-let [[idx] (o/crossing thresh series)]
+    (+ start-idx idx)))
 
 (defn latest-hit?
   "Check whether series crosses threshold in last period."
   [thresh series]
-  (let [last-idx (dec (count series))]
-    (-> (first-hit thresh series)
-        (= last-idx))))
+  (let [[_ _ latest?] (o/crossing thresh series)]
+    (boolean latest?)))
 
 (defn get-hit-period-and-value
-  "Get the period and value of the first hit in a series."
+  "Get the period and value of the first hit in a series, from a
+  single scan of the series."
   [start-idx thresh series]
-  (let [hit-period (get-hit-period start-idx thresh series)
-        hit-val (get-hit-val thresh series)]
-    [hit-period hit-val]))
+  (if-let [[idx val] (o/crossing thresh series)]
+    [(+ start-idx idx) val]
+    [nil nil]))
 
 (defn api-prep-query
   [src t-res nodata]
@@ -127,3 +125,149 @@
            (latest-hit? thresh ?clean-series)
            (get-hit-period-and-value ?start-idx thresh ?clean-series :> ?period ?prob)
            (date/period->datetime t-res ?period :> ?date)))))
+
+;; ### Partition Files
+;;
+;; `prob-series->long-ts` emits a tuple per pixel and period into a
+;; template tap, which opens a file for every ISO code and year a task
+;; sees. The export below instead splits each pixel's series by year
+;; and streams each `{iso}/{year}` partition to a directory of column
+;; files from the reducer that receives it. The long form is only produced
+;; when a partition is read back.
+
+(def ^:private period-year
+  (memoize
+   (fn [t-res period]
+     (subs (date/period->datetime t-res period) 0 4))))
+
+(defmapcatop year-slices
+  "Splits a pixel's series, which starts at period `start-idx`, by
+  calendar year, emitting `[year first-period slice]` for each year
+  the series covers.
+
+   Usage:
+     (let [src [[[10 20 30 40]]]]
+       (??<- [?year ?first ?slice]
+             (src ?series)
+             (year-slices \"16\" 826 ?series :> ?year ?first ?slice)))
+     ;=> [[\"2005\" 826 [10 20]] [\"2006\" 828 [30 40]]]"
+  [t-res start-idx series]
+  (let [series (vec series)
+        n (count series)
+        year-of #(period-year t-res (+ start-idx %))]
+    (loop [i 0, slices []]
+      (if (< i n)
+        (let [year (year-of i)
+              j (long (loop [j (inc i)]
+                        (if (and (< j n) (= year (year-of j)))
+                          (recur (inc j))
+                          j)))]
+          (recur j (conj slices [year (+ start-idx i) (subvec series i j)])))
+        slices))))
+
+(defn api-partition-path
+  "Returns the path of the partition directory for `iso` and `year`
+  under `out-path`."
+  [out-path iso year]
+  (format "%s/%s/%s" out-path iso year))
+
+;; Each partition directory holds one file per column.
+
+(def api-columns ["lat" "lon" "gadm2" "start" "len" "prob"])
+
+(defbufferiterop [pack-api-partition [out-path job-conf]]
+  "Receives the year slices of the pixels in one ISO code and year and
+  streams them to the partition's directory, one file per column (see
+  `api-columns`): the latitude, longitude, GADM2 code, first period,
+  slice length and probabilities of each pixel. Probabilities are
+  0-100 and stored as bytes. `job-conf` is the job configuration map
+  the files are written with. Only one pixel is held at a time.
+  Returns the number of pixels written."
+  [^java.util.Iterator tuples-iter]
+  (let [[iso year :as head] (.next tuples-iter)
+        dir (Path. ^String (api-partition-path out-path iso year))
+        fs (.getFileSystem dir (hadoop/job-conf job-conf))
+        outs (mapv #(.create fs (Path. dir ^String %) true) api-columns)
+        [^DataOutputStream lats ^DataOutputStream lons ^DataOutputStream gadms
+         ^DataOutputStream starts ^DataOutputStream lens ^DataOutputStream probs] outs
+        write! (fn [n [_ _ lat lon gadm2 start slice]]
+                 (.writeDouble lats (double lat))
+                 (.writeDouble lons (double lon))
+                 (.writeInt gadms (int gadm2))
+                 (.writeInt starts (int start))
+                 (.writeShort lens (int (count slice)))
+                 (doseq [prob slice]
+                   (.writeByte probs (int prob)))
+                 (inc n))]
+    (try
+      [(reduce write! (write! 0 head) (iterator-seq tuples-iter))]
+      (finally
+       (dorun (map (fn [^DataOutputStream out] (.close out)) outs))))))
+
+(defn read-api-partition
+  "Returns the pixels written to the partition directory `path` by
+  `pack-api-partition` as a map of columns: double arrays `:lat` and
+  `:lon`, int arrays `:gadm2` and `:start` (the period of each pixel's
+  first value), and `:probs`, a vector of each pixel's probabilities
+  as a byte array. Reads with the job configuration map `job-conf`,
+  or the project's configuration if it isn't supplied."
+  [path & [job-conf]]
+  (let [dir (Path. (str path))
+        fs (.getFileSystem dir (hadoop/job-conf (or job-conf (conf/project-conf))))
+        column #(.open fs (Path. dir ^String %))
+        n (quot (.getLen (.getFileStatus fs (Path. dir "len"))) 2)
+        lats (double-array n)
+        lons (double-array n)
+        gadms (int-array n)
+        starts (int-array n)
+        lens (int-array n)]
+    (with-open [^DataInputStream in (column "lat")] (dotimes [i n] (aset lats i (.readDouble in))))
+    (with-open [^DataInputStream in (column "lon")] (dotimes [i n] (aset lons i (.readDouble in))))
+    (with-open [^DataInputStream in (column "gadm2")] (dotimes [i n] (aset gadms i (.readInt in))))
+    (with-open [^DataInputStream in (column "start")] (dotimes [i n] (aset starts i (.readInt in))))
+    (with-open [^DataInputStream in (column "len")] (dotimes [i n] (aset lens i (int (.readShort in)))))
+    {:lat lats
+     :lon lons
+     :gadm2 gadms
+     :start starts
+     :probs (with-open [^DataInputStream in (column "prob")]
+              (mapv (fn [len]
+                      (let [bytes (byte-array len)]
+                        (.readFully in bytes)
+                        bytes))
+                    lens))}))
+
+(defn api-partition-rows
+  "Returns the partition for `iso` and `year` under `out-path`
+  in the long form of `prob-series->long-ts`, as a sequence of `[lat
+  lon iso gadm2 date prob]`."
+  [out-path t-res iso year]
+  (let [{:keys [lat lon gadm2 start probs]}
+        (read-api-partition (api-partition-path out-path iso year))]
+    (for [i (range (count probs))
+          [j prob] (map-indexed vector (probs i))]
+      [(aget ^doubles lat i) (aget ^doubles lon i) iso (aget ^ints gadm2 i)
+       (date/period->datetime t-res (+ (aget ^ints start i) j)) (long prob)])))
+
+(defn prob-series->partitions
+  "Returns a Cascalog query that writes the data of
+  `prob-series->long-ts` under `out-path` as one columnar directory
+  per ISO code and year (see `pack-api-partition`) and emits `[?iso
+  ?year ?count]` for each partition written; sink it to
+  `<out-path>/_partitions`. Each pixel's periods within a year travel
+  as a single tuple, and each reducer streams one partition at a
+  time. The partitions are written with the job configuration in
+  effect when the query is built, including any `with-job-conf`
+  settings."
+  [est-map src out-path & [thresh]]
+  (let [thresh (or thresh 0)
+        t-res (:t-res est-map)
+        job-conf (conf/project-conf)
+        clean-src (api-prep-query src t-res (:nodata est-map))]
+    (<- [?iso ?year ?count]
+        (clean-src ?lat ?lon ?iso _ ?gadm2 ?start-idx ?clean-series)
+        (ever-crosses-thresh? thresh ?clean-series)
+        (year-slices t-res ?start-idx ?clean-series :> ?year ?first-period ?slice)
+        (:sort ?lat ?lon)
+        (pack-api-partition [out-path job-conf] ?iso ?year ?lat ?lon ?gadm2 ?first-period ?slice
+                            :> ?count))))
@@ -14,6 +14,7 @@
             [forma.trends.filter :as f]
             [forma.utils :as u]
             [forma.source.humidtropics :as humid]
+            [forma.source.static :as static]
             [forma.matrix.utils :as mu]
             [forma.trends.stretch :as stretch]))
 
@@ -85,22 +86,24 @@
   which fall inside the humid tropics.
 
    Arguments:
-     static-src: source of tuples of static data
+     static-src: source of tuples of static data, or the path to a
+       static store (see `static/static-attrs`)
      vcf-limit: minimum VCF value required to keep a tuple
      chunk-src: source of timeseries chunk tuples"
   [static-src vcf-limit chunk-src]
-  (<- [?s-res ?mod-h ?mod-v ?sample ?line ?start-idx ?series]
-      (chunk-src ?ts-chunk)
-      (static-src ?s-res ?mod-h ?mod-v ?sample ?line ?vcf _ _ _ _)
+  (let [static (static/static-attrs static-src)]
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line ?start-idx ?series]
+        (chunk-src ?ts-chunk)
+        (static ?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist)
 
-      ;; unpack ts object
-      (thrift/unpack ?ts-chunk :> _ ?ts-loc ?ts-data _ _ _)
-      (thrift/unpack ?ts-data :> ?start-idx _ ?ts-array)
-      (thrift/unpack* ?ts-array :> ?series)
-      (thrift/unpack ?ts-loc :> ?s-res ?mod-h ?mod-v ?sample ?line)
+        ;; unpack ts object
+        (thrift/unpack ?ts-chunk :> _ ?ts-loc ?ts-data _ _ _)
+        (thrift/unpack ?ts-data :> ?start-idx _ ?ts-array)
+        (thrift/unpack* ?ts-array :> ?series)
+        (thrift/unpack ?ts-loc :> ?s-res ?mod-h ?mod-v ?sample ?line)
 
-      ;; filter on vcf-limit - ensures join & filter actually happens
-      (>= ?vcf vcf-limit)))
+        ;; filter on vcf-limit - ensures join & filter actually happens
+        (>= ?vcf vcf-limit))))
 
 (defn training-3000s?
   "Returns true if all values in the training period are -3000s"
@@ -343,27 +346,86 @@
   "Processes all neighbors... Returns the index within the chunk, the
   value, and the aggregate of the neighbors."
   [window nodata]
-  (for [[idx [val neighbors]]
-        (->> (w/neighbor-scan num-neighbors window)
-             (map-indexed vector))
-        :when val]
-    [idx val (->> neighbors
-                  (apply concat)
-                  (filter identity)
-                  (schema/combine-neighbors nodata))]))
+  (let [acc (schema/neighbor-accumulator)]
+    (for [[idx [val neighbors]]
+          (->> (w/neighbor-scan num-neighbors window)
+               (map-indexed vector))
+          :when val]
+      [idx val (schema/combine-neighbors nodata
+                                         (->> neighbors
+                                              (apply concat)
+                                              (filter identity))
+                                         acc)])))
+
+(defmapcatop [window-memberships [width height num-neighbors]]
+  "Returns the window and the window-relative sample and line of the
+  pixel at the supplied tile sample and line, for its own window and
+  for every adjacent window whose halo (the `num-neighbors` pixels
+  beyond its edges) the pixel falls within."
+  [sample line]
+  (let [win-col (quot sample width)
+        win-row (quot line height)]
+    (for [col (range (dec win-col) (+ 2 win-col))
+          row (range (dec win-row) (+ 2 win-row))
+          :let [s (- sample (* col width))
+                l (- line (* row height))]
+          :when (and (>= col 0) (>= row 0)
+                     (>= s (- num-neighbors)) (< s (+ width num-neighbors))
+                     (>= l (- num-neighbors)) (< l (+ height num-neighbors)))]
+      [col row s l])))
+
+(defbufferop [window-neighbors [width height num-neighbors nodata]]
+  "Accepts the window-relative sample, line and forma value of every
+  pixel in a window and its halo, and returns the index within the
+  window, the value and the aggregate of the neighbors of each pixel
+  in the window proper. Neighbors are combined in the same row-major
+  order as `process-neighbors`, but pixels in the halo count, so that
+  pixels on window edges see their neighbors in adjacent windows."
+  [tuples]
+  (let [n num-neighbors
+        padded-width (+ width (* 2 n))
+        ^objects grid (object-array (* padded-width (+ height (* 2 n))))
+        acc (schema/neighbor-accumulator)
+        span (inc (* 2 n))
+        neighbor-val
+        (fn [s l]
+          (loop [i 0, started? false]
+            (if (< i (* span span))
+              (let [dl (- (quot i span) n)
+                    ds (- (rem i span) n)
+                    val (when-not (and (zero? dl) (zero? ds))
+                          (aget grid (+ (+ s ds n) (* (+ l dl n) padded-width))))]
+                (cond (nil? val) (recur (inc i) started?)
+                      started? (do (schema/accumulate-neighbor! acc nodata val)
+                                   (recur (inc i) true))
+                      :else (do (schema/init-neighbors! acc val)
+                                (recur (inc i) true))))
+              (if started?
+                (schema/accumulator->neighbor-value acc)
+                schema/empty-neighbor-val))))]
+    (doseq [[s l val] tuples]
+      (aset grid (+ (+ s n) (* (+ l n) padded-width)) val))
+    (for [l (range height)
+          s (range width)
+          :let [val (aget grid (+ (+ s n) (* (+ l n) padded-width)))]
+          :when val]
+      [(+ s (* l width)) val (neighbor-val s l)])))
 
 (defn neighbor-query
-  "final query that walks the neighbors and spits out the values."
+  "final query that walks the neighbors and spits out the values.
+
+  Pixels are grouped into windows of `window-dims` (lines, samples)
+  within each tile and period. Each window also receives the pixels
+  within `neighbors` of its edges from the adjacent windows, so a
+  pixel's neighbors are only missing at the edge of its tile."
   [{:keys [neighbors window-dims nodata]} forma-val-src]
-  (let [[rows cols] window-dims
-        src (p/sparse-windower forma-val-src
-                               ["?sample" "?line"]
-                               window-dims
-                               "?forma-val"
-                               nil)]
+  {:pre [(<= neighbors (apply min window-dims))]}
+  (let [[rows cols] window-dims]
     (<- [?s-res ?period ?mod-h ?mod-v ?sample ?line ?val ?neighbor-val]
-        (src ?s-res ?period ?mod-h ?mod-v ?win-col ?win-row ?window)
-        (process-neighbors [neighbors] ?window nodata :> ?win-idx ?val ?neighbor-val)
+        (forma-val-src ?s-res ?period ?mod-h ?mod-v ?s ?l ?forma-val)
+        (window-memberships [cols rows neighbors] ?s ?l :> ?win-col ?win-row ?win-s ?win-l)
+        (window-neighbors [cols rows neighbors nodata] ?win-s ?win-l ?forma-val
+                          :> ?win-idx ?val ?neighbor-val)
         (r/tile-position cols rows ?win-col ?win-row ?win-idx :> ?sample ?line))))
 
 (defmapcatop eco-and-super
@@ -391,9 +453,10 @@
   [{:keys [nodata t-res est-start min-coast-dist]} dynamic-src static-src
    & {:keys [super-ecoregions] :or {super-ecoregions false}}]
   (let [first-idx (date/datetime->period t-res est-start)
+        static (static/static-attrs static-src)
         clean-data (<- [?s-res ?pd ?mod-h ?mod-v ?s ?l ?val ?neighbor-val ?ecoid ?hansen]
                        (dynamic-src ?s-res ?pd ?mod-h ?mod-v ?s ?l ?val ?neighbor-val)
-                       (static-src ?s-res ?mod-h ?mod-v ?s ?l _ _ ?ecoid ?hansen ?coast-dist)
+                       (static ?s-res ?mod-h ?mod-v ?s ?l :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist)
                        (thrift/obj-contains-nodata? nodata ?val :> false)
                        (thrift/obj-contains-nodata? nodata ?neighbor-val :> false)
                        (= ?pd first-idx)
@@ -417,9 +480,18 @@
         (:distinct false))))
 
 (defmapop [apply-betas [betas]]
-  [eco val neighbor-val]
-  (let [beta (((comp keyword str) eco) betas)]
-    (classify/logistic-prob-wrap beta val neighbor-val)))
+  "Returns the probability of deforestation for a pixel in the
+  supplied ecoregion. `betas` is either a beta table (see
+  `classify/beta-table`) or the path to one written by
+  `classify/write-beta-table!`, which is loaded once per task."
+  {:stateful true}
+  ([] [(if (string? betas)
+         (classify/load-beta-table betas)
+         betas)
+       (double-array classify/feature-count)])
+  ([[table row] eco val neighbor-val]
+     (classify/score-pixel (table (long eco)) row val neighbor-val))
+  ([_] nil))
 
 (defbufferop consolidate-timeseries
   "Orders tuples by the second incoming field, inserting a supplied
@@ -442,20 +514,58 @@
     [(vec (map #(mu/sparsify % nodata idxs sorted-tuples)
                (range 1 field-count)))]))
 
+(defbufferiterop consolidate-timeseries-iter
+  "Streaming version of `consolidate-timeseries`. Tuples must arrive
+  secondary sorted by the second incoming field (the period); each
+  field is appended to its own accumulator as the tuples stream past,
+  with the nodata value (first incoming field) inserted on the fly
+  wherever there are holes in the timeseries. Output matches
+  `consolidate-timeseries`.
+
+   Usage:
+     (let [nodata -9999
+           src [[1 827 1 2 3]
+                [1 829 2 3 4]]]
+      (??- (<- [?id ?per-ts ?f1-ts ?f2-ts ?f3-ts]
+        (src ?id ?period ?f1 ?f2 ?f3)
+        (:sort ?period)
+        (consolidate-timeseries-iter nodata ?period ?f1 ?f2 ?f3 :> ?per-ts ?f1-ts ?f2-ts ?f3-ts))))
+     ;=> (([1 [827 -9999 829] [1 -9999 2] [2 -9999 3] [3 -9999 4]]))"
+  [tuples-iter]
+  (let [[_ accs]
+        (reduce (fn [[prev accs] [nodata period & fields]]
+                  (let [gap (if prev (dec (- period prev)) 0)
+                        accs (or accs (repeatedly (inc (count fields)) #(transient [])))]
+                    [period (doall (map #(-> %1
+                                             (mu/conj-fill! gap nodata)
+                                             (conj! %2))
+                                        accs
+                                        (cons period fields)))]))
+                [nil nil]
+                (iterator-seq tuples-iter))]
+    (when accs
+      [(vec (map persistent! accs))])))
+
 (defn forma-estimate
   "query to end all queries: estimate the probabilities for each
-  period after the training period."
+  period after the training period. `beta-src` is either a source of
+  beta vectors or the path to a beta table, which should be shipped
+  with `classify/beta-cache-conf`."
   [{:keys [nodata]} beta-src dynamic-src static-src
    & {:keys [super-ecoregions] :or {super-ecoregions false}}]
-  (let [betas (classify/beta-dict beta-src)]
+  (let [betas (if (string? beta-src)
+                beta-src
+                (classify/beta-table beta-src))
+        static (static/static-attrs static-src)]
     (<- [?s-res ?mod-h ?mod-v ?s ?l ?start-idx ?prob-series]
         (dynamic-src ?s-res ?pd ?mod-h ?mod-v ?s ?l ?val ?neighbor-val)
         (thrift/obj-contains-nodata? nodata ?val :> false)
         (thrift/obj-contains-nodata? nodata ?neighbor-val :> false)
-        (static-src ?s-res ?mod-h ?mod-v ?s ?l _ _ ?ecoregion _ _)
+        (static ?s-res ?mod-h ?mod-v ?s ?l :> ?vcf ?gadm ?ecoregion ?hansen ?coast-dist)
         (get-ecoregion ?ecoregion :super-ecoregions super-ecoregions :> ?final-eco)
         (apply-betas [betas] ?final-eco ?val ?neighbor-val :> ?prob)
-        (consolidate-timeseries nodata ?pd ?prob :> ?pd-series ?prob-series)
+        (:sort ?pd)
+        (consolidate-timeseries-iter nodata ?pd ?prob :> ?pd-series ?prob-series)
         (first ?pd-series :> ?start-idx)
         (:distinct false))))
 
@@ -492,7 +602,8 @@
 
 (defn probs-gadm2
   [probs-src gadm2-src static-src]
-  (<- [?s-res ?mod-h ?mod-v ?sample ?line ?start-final ?merged-series ?gadm2 ?ecoid]
-      (probs-src ?s-res ?mod-h ?mod-v ?sample ?line ?start-final ?merged-series)
-      (gadm2-src ?s-res ?mod-h ?mod-v ?sample ?line ?gadm2)
-      (static-src ?s-res ?mod-h ?mod-v ?sample ?line _ _ ?ecoid _ _)))
+  (let [static (static/static-attrs static-src)]
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line ?start-final ?merged-series ?gadm2 ?ecoid]
+        (probs-src ?s-res ?mod-h ?mod-v ?sample ?line ?start-final ?merged-series)
+        (gadm2-src ?s-res ?mod-h ?mod-v ?sample ?line ?gadm2)
+        (static ?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist))))
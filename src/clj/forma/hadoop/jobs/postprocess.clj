@@ -4,10 +4,13 @@
   (:use [cascalog.api]
         [forma.source.gadmiso :only (gadm->iso gadm2->iso)]
         [forma.gfw.cdm :only (latlon->tile, latlon-valid?, meters->maptile,
-                                            gen-all-zooms, agg-periods-counts)]
-        [forma.utils :only (positions)])
+                                            gen-zoom-pyramid, agg-periods-counts,
+                                            agg-periods-counts-packed,
+                                            tile-table->long,
+                                            packed-tile-table->long)])
   (:require [forma.postprocess.output :as o]
             [forma.reproject :as r]
+            [forma.source.static :as static]
             [forma.date-time :as date]
             [cascalog.ops :as c]))
 
@@ -31,7 +34,9 @@
   Example usage:
     (first-hit 5 [1 2 3 4 5 6 7 8 9 10]) => 4"
   [thresh series]
-  (first (positions (partial <= thresh) series)))
+  (let [idx (o/first-crossing thresh series)]
+    (when-not (neg? idx)
+      idx)))
 
 (defn merge-gadm
   "Returns a source of probability series along with the appropriate gadm v.2 code."
@@ -76,6 +81,138 @@
   [disc coll]
   [(vec (map (partial * disc) coll))])
 
+;; ### Shared Pixel Preparation
+;;
+;; Every output product needs some subset of the cleaned probability
+;; series, the period of first alert, the pixel centroid and the
+;; country code. `prep-pixels` computes all of them once per pixel,
+;; with and without the ecoregion discount, and the `prepped->*`
+;; queries below shape its output into the individual products. See
+;; `postprocess-products` for running them all over a single read of
+;; the source.
+
+(defn clean-and-hit
+  "Returns the discounted cleaned series and its first-hit index,
+  followed by the undiscounted cleaned series and first-hit index, for
+  the raw probability series `series`. Hit indices are nil if the
+  series never reaches `thresh` (or `thresh` is nil). The undiscounted
+  values are reused when `disc` is 1.
+
+  Example usage:
+    (clean-and-hit 0.5 -9999.0 50 [0.4 0.9 0.95])
+    ;=> [[20 32 38] nil [40 65 75] 1]"
+  [disc nodata thresh series]
+  (let [[clean hit] (o/clean-probs-first-hit series nodata thresh)]
+    (if (== 1 disc)
+      [clean hit clean hit]
+      (let [[disc-series] (discount disc series)
+            [disc-clean disc-hit] (o/clean-probs-first-hit disc-series nodata thresh)]
+        [disc-clean disc-hit clean hit]))))
+
+(defn prep-pixels
+  "Returns a Cascalog query that cleans each pixel of the FORMA output
+  `src` (pre-joined with GADM2 and ecoregion) once for all output
+  products. `?disc-series` and `!disc-hit` are the cleaned series and
+  first-hit index after applying `disc-map`; `?clean-series` and
+  `!hit` are the same before discounting. Hit indices and `!iso` are
+  nil where there is no first hit or no ISO code."
+  [src nodata thresh & [disc-map]]
+  (let [disc-map (or disc-map {})]
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line ?start ?gadm2 ?ecoid !iso ?lat ?lon
+         ?disc-series !disc-hit ?clean-series !hit]
+        (src ?s-res ?mod-h ?mod-v ?sample ?line ?start ?prob-series ?gadm2 ?ecoid)
+        (get disc-map ?ecoid DEFAULT-DISCOUNT :> ?disc)
+        (clean-and-hit ?disc nodata thresh ?prob-series
+                       :> ?disc-series !disc-hit ?clean-series !hit)
+        (gadm2->iso ?gadm2 :> !iso)
+        (r/modis->latlon ?s-res ?mod-h ?mod-v ?sample ?line :> ?lat ?lon)
+        (:distinct false))))
+
+(defn pixel-hits
+  "Projects `prepped`, the output of `prep-pixels`, onto the fields
+  used by the hit-based products: `[?start ?gadm2 !iso ?lat ?lon
+  !disc-hit !hit]`."
+  [prepped]
+  (<- [?start ?gadm2 !iso ?lat ?lon !disc-hit !hit]
+      (prepped _ _ _ _ _ ?start ?gadm2 _ !iso ?lat ?lon _ !disc-hit _ !hit)
+      (:distinct false)))
+
+(defn hits->cdm
+  "Returns map tile coordinates and first-alert periods (relative to
+  2000-01-01 at `tres-out`) for the discounted hits in `hits`, the
+  output of `pixel-hits`. Pixels without an ISO code are dropped, and
+  hits before the relative period `min-rp` are skipped when it is
+  supplied."
+  [hits zoom tres tres-out & [min-rp]]
+  (let [epoch (date/datetime->period tres-out "2000-01-01")
+        min-rp (or min-rp Integer/MIN_VALUE)]
+    (<- [?x ?y ?z ?p]
+        (hits ?start _ !iso ?lat ?lon !disc-hit _)
+        (identity !iso :> ?iso)
+        (identity !disc-hit :> ?first-hit-idx)
+        (+ ?start ?first-hit-idx :> ?period)
+        (date/shift-resolution tres tres-out ?period :> ?period-new-res)
+        (- ?period-new-res epoch :> ?rp)
+        (<= min-rp ?rp)
+        (min-period ?rp :> ?p)
+        (latlon-valid? ?lat ?lon)
+        (latlon->tile ?lat ?lon zoom :> ?x ?y ?z))))
+
+(defn hits->country-stats
+  "Counts the undiscounted hits in `hits`, the output of `pixel-hits`,
+  by country and period."
+  [hits t-res t-res-out]
+  (let [epoch (date/datetime->period t-res-out "2000-01-01")]
+    (<- [?iso ?cdm-period ?date-str ?count]
+        (hits ?start _ !iso _ _ _ !hit)
+        (identity !iso :> ?iso)
+        (identity !hit :> ?first-hit-idx)
+        (+ ?start ?first-hit-idx :> ?period)
+        (date/shift-resolution t-res t-res-out ?period :> ?period-new-res)
+        (- ?period-new-res epoch :> ?cdm-period)
+        (date/period->datetime t-res-out ?period-new-res :> ?date-str)
+        (c/count ?count))))
+
+(defn prepped->blue-raster
+  "Joins the discounted series in `prepped` with static attributes for
+  Blue Raster."
+  [prepped static-src]
+  (let [static (static/static-attrs static-src)]
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line ?lat ?lon ?iso ?vcf ?gadm2
+         ?ecoid ?hansen ?disc-series]
+        (prepped ?s-res ?mod-h ?mod-v ?sample ?line _ ?gadm2 ?ecoid !iso ?lat ?lon
+                 ?disc-series _ _ _)
+        (identity !iso :> ?iso)
+        (static ?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?static-ecoid ?hansen ?coast-dist))))
+
+(defn hits->download
+  "Formats the discounted hits in `hits`, the output of `pixel-hits`,
+  for bulk download. Count operation forces reduce step, which avoids
+  producing the thousands of output files that would otherwise be
+  created by all the mappers."
+  [hits t-res]
+  (let [format-str "%.8f"
+        query (<- [?lat-str ?lon-str ?iso ?gadm2 ?date-str ?count]
+                  (hits ?start ?gadm2 !iso ?lat ?lon !disc-hit _)
+                  (identity !iso :> ?iso)
+                  (identity !disc-hit :> ?first-hit-idx)
+                  (format format-str ?lat :> ?lat-str)
+                  (format format-str ?lon :> ?lon-str)
+                  (+ ?start ?first-hit-idx :> ?period)
+                  (date/period->datetime t-res ?period :> ?date-str)
+                  (c/count ?count))]
+    (<- [?lat-str ?lon-str ?iso ?gadm2 ?date-str]
+        (query ?lat-str ?lon-str ?iso ?gadm2 ?date-str _))))
+
+(defn prepped->david
+  "Joins the undiscounted series in `prepped` with Hansen data for David."
+  [prepped static-src]
+  (let [static (static/static-attrs static-src)]
+    (<- [?lat ?lon ?clean-series ?gadm2 ?ecoid ?hansen]
+        (prepped ?s-res ?mod-h ?mod-v ?sample ?line _ ?gadm2 ?ecoid _ ?lat ?lon
+                 _ _ ?clean-series _)
+        (static ?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?static-ecoid ?hansen ?coast-dist))))
+
 (defn forma->cdm
   "Returns a Cascalog generator that transforms FORMA data into map
     tile coordinates.  `start` - Estimation start period date string.
@@ -101,30 +238,84 @@
                 \"2005-12-31\"
                 50)"
   [src nodata zoom tres tres-out start thresh & [disc-map]]
-  (let [epoch (date/datetime->period tres-out "2000-01-01")
-        disc-map (or disc-map {})]
-    (<- [?x ?y ?z ?p]
-        (src ?sres ?modh ?modv ?s ?l ?start-period ?prob-series ?gadm2 ?ecoid)
-        (get disc-map ?ecoid DEFAULT-DISCOUNT :> ?disc)
-        (discount ?disc ?prob-series :> ?series)
-        (o/clean-probs ?series nodata :> ?clean-series)
-        (gadm2->iso ?gadm2 :> ?iso)
-        (first-hit thresh ?clean-series :> ?first-hit-idx)
-        (+ ?start-period ?first-hit-idx :> ?period)
-        (date/shift-resolution tres tres-out ?period :> ?period-new-res)
-        (- ?period-new-res epoch :> ?rp)
-        (min-period ?rp :> ?p)
-        (date/period->datetime tres-out ?period-new-res :> ?date-str)
-        (r/modis->latlon ?sres ?modh ?modv ?s ?l :> ?lat ?lon)
-        (latlon-valid? ?lat ?lon)
-        (latlon->tile ?lat ?lon zoom :> ?x ?y ?z))))
+  (-> (prep-pixels src nodata thresh disc-map)
+      (pixel-hits)
+      (hits->cdm zoom tres tres-out)))
+
+(defn encode-tile-table
+  "Aggregates the long-form tile counts in `src` into a tile table in
+  format `fmt`: `:text` for PostgreSQL array strings (see
+  `agg-periods-counts`) or `:packed` for packed period counts (see
+  `agg-periods-counts-packed`)."
+  [fmt src]
+  (case fmt
+    :text (agg-periods-counts src)
+    :packed (agg-periods-counts-packed src)))
+
+(defn decode-tile-table
+  "Reverses `encode-tile-table`, returning the long-form tile counts of
+  `tiles`, a tile table in format `fmt`."
+  [fmt tiles]
+  (case fmt
+    :text (tile-table->long tiles)
+    :packed (packed-tile-table->long tiles)))
 
 (defn forma->website
-  "Do full prep of FORMA data for the website, generating all zoom levels."
-  [src nodata zoom min-zoom tres tres-out start thresh & [disc-map]]
+  "Do full prep of FORMA data for the website, generating all zoom
+  levels. The tile table is written in format `fmt` (see
+  `encode-tile-table`), `:text` by default."
+  [src nodata zoom min-zoom tres tres-out start thresh & [disc-map fmt]]
   (let [cdm-src (forma->cdm src nodata zoom tres tres-out start thresh disc-map)
-        zoom-src (gen-all-zooms cdm-src min-zoom)]
-    (agg-periods-counts zoom-src)))
+        zoom-src (gen-zoom-pyramid cdm-src zoom min-zoom)]
+    (encode-tile-table (or fmt :text) zoom-src)))
+
+(defn read-tile-line
+  "Parses a line of the tab-separated tile table written by
+  `FormaWebsite` into `[x y z periods-arr counts-arr]`."
+  [line]
+  (let [[x y z periods-arr counts-arr] (split-line line #"\t")]
+    [(Long/parseLong x) (Long/parseLong y) (Long/parseLong z)
+     periods-arr counts-arr]))
+
+(defn tile-table-src
+  "Returns the tile table in the text source `line-src` (see
+  `read-tile-line`) as a generator of `agg-periods-counts` tuples."
+  [line-src]
+  (<- [?x ?y ?z ?periods-arr ?counts-arr]
+      (line-src ?line)
+      (read-tile-line ?line :> ?x ?y ?z ?periods-arr ?counts-arr)))
+
+(defn forma->website-update
+  "Updates `prev-tiles`, the output of a previous `forma->website`
+  run, with the FORMA data in `src`. Counts for periods before the
+  one containing the date string `since` are kept as they are:
+  `clean-probs` makes first hits permanent, so those tiles can't
+  change. Only hits from that period on are aggregated and rolled up
+  the zoom levels, skipping zoom `zoom` tiles that already have an
+  earlier hit, and merged with the previous counts. `since` should be
+  no later than the first period added since the previous run; the
+  period containing it is recomputed in full, since it may have been
+  only partly covered. `prev-tiles` is read, and the update written,
+  in format `fmt`. Other arguments are as for `forma->website`."
+  [src prev-tiles nodata zoom min-zoom tres tres-out since thresh & [disc-map fmt]]
+  (let [fmt (or fmt :text)
+        since-rp (- (date/datetime->period tres-out since)
+                    (date/datetime->period tres-out "2000-01-01"))
+        prev-long (decode-tile-table fmt prev-tiles)
+        settled (<- [?x ?y ?z]
+                    (prev-long ?x ?y ?z ?period _)
+                    (= ?z zoom)
+                    (< ?period since-rp))
+        cdm-src (-> (prep-pixels src nodata thresh disc-map)
+                    (pixel-hits)
+                    (hits->cdm zoom tres tres-out since-rp))
+        fresh (<- [?x ?y ?z ?p]
+                  (cdm-src ?x ?y ?z ?p)
+                  (settled ?x ?y ?z :> false))
+        kept (<- [?x ?y ?z ?period ?count]
+                 (prev-long ?x ?y ?z ?period ?count)
+                 (< ?period since-rp))]
+    (encode-tile-table fmt (combine kept (gen-zoom-pyramid fresh zoom min-zoom)))))
 
 (defn spark-hits
   "Prep for generate counts by country, for spark graphs on GFW site.
@@ -179,47 +370,99 @@
   "Prepare data for use by Blue Raster. Expects `src` to include GADM2
   and ecoregion fields already."
   [src static-src nodata & [disc-map]]
-  (let [disc-map (or disc-map {})]
-    (<- [?s-res ?mod-h ?mod-v ?sample ?line ?lat ?lon ?iso ?vcf ?gadm2
-         ?ecoid ?hansen ?clean-series]
-        (src ?s-res ?mod-h ?mod-v ?sample ?line ?start ?prob-series ?gadm2 ?ecoid)
-        (static-src ?s-res ?mod-h ?mod-v ?sample ?line ?vcf _ _ ?hansen _)
-        (get disc-map ?ecoid DEFAULT-DISCOUNT :> ?disc)
-        (discount ?disc ?prob-series :> ?series)
-        (o/clean-probs ?series nodata :> ?clean-series)
-        (gadm2->iso ?gadm2 :> ?iso)
-        (r/modis->latlon ?s-res ?mod-h ?mod-v ?sample ?line :> ?lat ?lon))))
+  (-> (prep-pixels src nodata nil disc-map)
+      (prepped->blue-raster static-src)))
 
 (defn forma-download
   "Prepare data for bulk download from S3. Expects `src` to include
-  GADM2 and ecoregion fields already. Count operation forces reduce
-  step, which avoids producing the thousands of output files that
-  would otherwise be created by all the mappers."
+  GADM2 and ecoregion fields already."
   [src thresh t-res nodata & [disc-map]]
-  (let [format-str "%.8f"
-        disc-map (or disc-map {})
-        query (<- [?lat-str ?lon-str ?iso ?gadm2 ?date-str ?count]
-                  (src ?s-res ?mod-h ?mod-v ?sample ?line ?start-final
-                       ?prob-series ?gadm2 ?ecoid)
-                  (get disc-map ?ecoid DEFAULT-DISCOUNT :> ?disc)
-                  (discount ?disc ?prob-series :> ?series)
-                  (o/clean-probs ?series nodata :> ?clean-series)
-                  (gadm2->iso ?gadm2 :> ?iso)
-                  (r/modis->latlon ?s-res ?mod-h ?mod-v ?sample ?line :> ?lat ?lon)
-                  (format format-str ?lat :> ?lat-str)
-                  (format format-str ?lon :> ?lon-str)
-                  (first-hit thresh ?clean-series :> ?first-hit-idx)
-                  (+ ?start-final ?first-hit-idx :> ?period)
-                  (date/period->datetime t-res ?period :> ?date-str)
-                  (c/count ?count))]
-    (<- [?lat-str ?lon-str ?iso ?gadm2 ?date-str]
-        (query ?lat-str ?lon-str ?iso ?gadm2 ?date-str _))))
+  (-> (prep-pixels src nodata thresh disc-map)
+      (pixel-hits)
+      (hits->download t-res)))
 
 (defn forma->david
   "Prep data for David."
   [nodata src static-src]
-  (<- [?lat ?lon ?clean-probs ?gadm2 ?ecoid ?hansen]
-      (src ?s-res ?mod-h ?mod-v ?sample ?line ?start-final ?merged-series ?gadm2 ?ecoid)
-      (static-src ?s-res ?mod-h ?mod-v ?sample ?line _ _ _ ?hansen _)
-      (r/modis->latlon ?s-res ?mod-h ?mod-v ?sample ?line :> ?lat ?lon)
-      (o/clean-probs ?merged-series nodata :> ?clean-probs)))
+  (-> (prep-pixels src nodata nil)
+      (prepped->david static-src)))
+
+(defn postprocess-products
+  "Returns a map of output product name to Cascalog query, all fed by
+  a single `prep-pixels` pass over the FORMA output `src`. Sinking
+  them together with `?-` reads and cleans the source once.
+
+  Example usage:
+    (let [products (postprocess-products src static-src -9999.0 17 7 50
+                                         \"16\" \"32\")]
+      (apply ?- (mapcat (fn [[k query]]
+                          [(hfs-textline (str \"/tmp/output/\" (name k))) query])
+                        products)))"
+  [src static-src nodata zoom min-zoom thresh t-res t-res-out & [disc-map]]
+  (let [prepped (prep-pixels src nodata thresh disc-map)
+        hits (pixel-hits prepped)]
+    {:website (-> (hits->cdm hits zoom t-res t-res-out)
+                  (gen-zoom-pyramid zoom min-zoom)
+                  (agg-periods-counts))
+     :country-stats (hits->country-stats hits t-res t-res-out)
+     :blue-raster (prepped->blue-raster prepped static-src)
+     :download (hits->download hits t-res)
+     :david (prepped->david prepped static-src)}))
+
+;; ### Multiple Thresholds
+;;
+;; Thresholds only enter the products through the first-hit indices,
+;; so the series are cleaned once and `thresh-hits` finds the first
+;; hit for every threshold in one scan of each series. Only the hit
+;; indices travel on from there, not the series.
+
+(defn thresh-hits
+  "Returns the first-hit indices of the discounted and undiscounted
+  cleaned series for each of `threshs`, as two vectors in the order of
+  `threshs` (nil where the series never reaches that threshold).
+
+  Example usage:
+    (thresh-hits [50 75] [10 60 80] [10 60 70])
+    ;=> [[1 2] [1 nil]]"
+  [threshs disc-series clean-series]
+  [(o/first-crossings threshs disc-series)
+   (o/first-crossings threshs clean-series)])
+
+(defn prep-thresholds
+  "Like `pixel-hits`, but with vectors of first-hit indices for each
+  of `threshs` in place of the single hit indices. The cleaned series
+  are dropped once the hits are found."
+  [src nodata threshs & [disc-map]]
+  (let [prepped (prep-pixels src nodata nil disc-map)]
+    (<- [?start ?gadm2 !iso ?lat ?lon ?disc-hits ?hits]
+        (prepped _ _ _ _ _ ?start ?gadm2 _ !iso ?lat ?lon ?disc-series _ ?clean-series _)
+        (thresh-hits threshs ?disc-series ?clean-series :> ?disc-hits ?hits)
+        (:distinct false))))
+
+(defn thresh-pixel-hits
+  "Returns `tprepped`, the output of `prep-thresholds`, in the layout
+  of `pixel-hits` for the threshold at index `k` of `threshs`."
+  [tprepped k]
+  (<- [?start ?gadm2 !iso ?lat ?lon !disc-hit !hit]
+      (tprepped ?start ?gadm2 !iso ?lat ?lon ?disc-hits ?hits)
+      (nth ?disc-hits k :> !disc-hit)
+      (nth ?hits k :> !hit)
+      (:distinct false)))
+
+(defn threshold-products
+  "Returns a map of `[product thresh]` to Cascalog query for the
+  website, download and country-stats products at each threshold in
+  `threshs`, all fed by a single `prep-thresholds` pass over the FORMA
+  output `src`. Sinking them together with `?-` cleans the source
+  once for every threshold."
+  [src nodata zoom min-zoom threshs t-res t-res-out & [disc-map]]
+  (let [tprepped (prep-thresholds src nodata threshs disc-map)]
+    (into {} (for [[k thresh] (map-indexed vector threshs)
+                   :let [hits (thresh-pixel-hits tprepped k)]
+                   [product query]
+                   {:website (-> (hits->cdm hits zoom t-res t-res-out)
+                                 (gen-zoom-pyramid zoom min-zoom)
+                                 (agg-periods-counts))
+                    :download (hits->download hits t-res)
+                    :country-stats (hits->country-stats hits t-res t-res-out)}]
+               [[product thresh] query]))))
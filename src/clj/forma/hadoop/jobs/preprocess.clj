@@ -64,28 +64,57 @@
     (with-job-conf {"mapred.map.tasks" num-tasks}
       (?- out-loc (r/exploder s-res tiles src)))))
 
+;; Pixel splits and chunk ids are written to small files, one tuple
+;; per unit of work; we ask for this many map tasks per tile to spread
+;; that work across the cluster.
+(def pixel-task-multiple 3)
+
 (defn static-chunker
-  "m-res - MODIS resolution. "
-  [m-res chunk-size tile-seq dataset agg ascii-path pail-path]
+  "Samples the static dataset at `raster-path`, a binary raster written
+  by ConvertStatic, into chunks of every tile in `tile-seq` at MODIS
+  resolution `m-res`, in a map-only job. `agg` (`:sum` or `:max`)
+  combines grid cells finer than `m-res`."
+  [m-res chunk-size tile-seq dataset agg raster-path pail-path]
   (with-fs-tmp [_ tmp-dir]
-    (let [line-tap (hfs-textline ascii-path)
-          pix-tap  (p/pixel-generator tmp-dir m-res tile-seq)]
-      (->> (s/static-chunks m-res chunk-size dataset agg line-tap pix-tap)
-           (to-pail pail-path)))))
+    (let [[_ height] (reproj/chunk-dims m-res chunk-size)
+          chunks (quot (reproj/pixels-at-res m-res) height)
+          chunk-src (c/lazy-generator tmp-dir (for [[h v] tile-seq
+                                                    id (range chunks)]
+                                                [h v id]))]
+      (with-job-conf {"mapred.map.tasks" (* pixel-task-multiple (count tile-seq))}
+        (->> (s/raster-chunks m-res chunk-size dataset agg raster-path chunk-src)
+             (to-pail pail-path))))))
 
 (defmain PreprocessStatic
-  "See project wiki for example usage."
+  "See project wiki for example usage. `ascii-path` may hold an
+  indexed ASCII grid, which is first converted into a temporary binary
+  raster, or a binary raster written by ConvertStatic."
   [dataset ascii-path output-path s-res & countries]
   {:pre [(string? s-res)]}
-  (static-chunker s-res
-                  static/chunk-size
-                  (->> countries
-                       (map read-string)
-                       (apply tile-set))
-                  dataset
-                  ({"vcf" c/max "hansen" c/sum} dataset c/max)
-                  ascii-path
-                  output-path))
+  (with-fs-tmp [_ tmp-dir]
+    (let [binary? (s/read-raster-header ascii-path)
+          raster-path (if binary? ascii-path (str tmp-dir "/raster"))]
+      (when-not binary?
+        (s/ascii->raster ascii-path
+                         raster-path
+                         (static/static-datasets (keyword dataset))))
+      (static-chunker s-res
+                      static/chunk-size
+                      (->> countries
+                           (map read-string)
+                           (apply tile-set))
+                      dataset
+                      ({"vcf" :max "hansen" :sum} dataset :max)
+                      raster-path
+                      output-path))))
+
+(defmain ConvertStatic
+  "Converts the indexed ASCII grid for `dataset` into a binary raster,
+  which PreprocessStatic can read without converting it again."
+  [dataset ascii-path raster-path]
+  (s/ascii->raster ascii-path
+                   raster-path
+                   (static/static-datasets (keyword dataset))))
 
 (defmain PreprocessAscii
   "TODO: This is only good for hansen datasets looking to be combined
@@ -95,16 +124,17 @@
          (string? s-res)]}
   (with-fs-tmp [_ tmp-dir]
     (let [line-tap (hfs-textline ascii-path)
-          pix-tap  (->> countries
+          tiles    (->> countries
                         (map read-string)
-                        (apply tile-set)
-                        (p/pixel-generator tmp-dir s-res))]
-      (->> (s/static-modis-chunks static/chunk-size
-                                  dataset
-                                  ({"vcf" c/min "hansen" c/sum} dataset c/max)
-                                  line-tap
-                                  pix-tap)
-           (to-pail pail-path)))))
+                        (apply tile-set))
+          pix-tap  (p/pixel-generator tmp-dir s-res tiles)]
+      (with-job-conf {"mapred.map.tasks" (* pixel-task-multiple (count tiles))}
+        (->> (s/static-modis-chunks static/chunk-size
+                                    dataset
+                                    ({"vcf" c/min "hansen" c/sum} dataset c/max)
+                                    line-tap
+                                    pix-tap)
+             (to-pail pail-path))))))
 
 (defmain ExplodeStatic
   "Explode DataChunks from a pail into individual pixels."
@@ -133,7 +163,7 @@
   ([path out-path m-res out-t-res fires-start-date tiles-or-isos]
      (let [end-date (date/todays-date)
            tiles (parse-locations tiles-or-isos)
-           fire-src (f/fire-source (hfs-textline path) tiles m-res)
+           fire-src (f/fast-fire-source :daily (hfs-textline path) tiles m-res)
            reproject-query (f/reproject-fires m-res fire-src)
            ts-query (tseries/fire-query reproject-query m-res out-t-res
                                         fires-start-date end-date)
@@ -141,6 +171,31 @@
            sink (hfs-seqfile out-path :sinkmode :replace)]
        (?- sink fires-tap))))
 
+(defmain FirePail
+  "Reprojects raw fire files and adds one DataChunk per fire to the
+   pail at `pail-path`. Each chunk is stamped with the current time as
+   its pedigree, so that `UpdateFireSeries` can pick out the new
+   detections later on."
+  [path pail-path m-res tiles-or-isos]
+  (let [tiles (parse-locations tiles-or-isos)
+        fire-src (f/fast-fire-source :daily (hfs-textline path) tiles m-res)]
+    (to-pail pail-path (f/reproject-fires m-res fire-src))))
+
+(defmain UpdateFireSeries
+  "Extends the fire series written by a previous `PreprocessFire` or
+   `UpdateFireSeries` run through today, adding in only the fire
+   DataChunks in the pail created after `since` (seconds since the
+   epoch, compared against each chunk's pedigree)."
+  [pail-path prev-path out-path m-res out-t-res fires-start-date since]
+  (let [end-date (date/todays-date)
+        since (utils/arg-parser since)
+        fire-pail (split-chunk-tap pail-path ["fire" (format "%s-01" m-res)])
+        chunk-src (<- [?pixel-chunk]
+                      (fire-pail _ ?pixel-chunk))
+        sink (hfs-seqfile out-path :sinkmode :replace)]
+    (?- sink (tseries/fire-update-query (hfs-seqfile prev-path) chunk-src
+                                        out-t-res fires-start-date end-date since))))
+
 (defmain PreprocessModis
   "Preprocess MODIS data from raw HDF files to pail.
 
@@ -10,6 +10,10 @@
             [forma.thrift :as thrift]
             [forma.hadoop.pail :as p]
             [forma.hadoop.jobs.api :as api]
+            [forma.postprocess.index :as index]
+            [forma.ops.classify :as classify]
+            [forma.source.static :as static]
+            [clojure.string :as s]
             [forma.hadoop.jobs.postprocess :as postprocess]))
 
 (defn run-params [k est-start est-end]
@@ -57,12 +61,29 @@
       (read-string pedigree)
       pedigree)))
 
+(defn static-input
+  "Returns the static store at `static-path` if it holds one (see
+  StaticStore), else a sequence file tap of static tuples."
+  [static-path]
+  (if (static/static-store? static-path)
+    static-path
+    (hfs-seqfile static-path)))
+
+(defmain StaticStore
+  "Packs the static tuples at `static-path` into a static store at
+  `store-path`, which can stand in for `static-path` in later steps."
+  [static-path store-path]
+  (let [sink (hfs-textline (str store-path "/_tiles") :sinkmode :replace)]
+    ;; reducers write the tile files themselves
+    (with-job-conf {"mapred.reduce.tasks.speculative.execution" false}
+      (?- sink (static/static-store-query store-path (hfs-seqfile static-path))))))
+
 (defmain TimeseriesFilter
   "Uses thrift-bool as switch instead of {:keys [thrift] ...} because use
    with defmain seemed unreliable - keyword were not recognized as such."
   [s-res t-res ts-path static-path output-path]
   (let [vcf-limit (:vcf-limit (get-est-map s-res t-res))
-        static-src (hfs-seqfile static-path)
+        static-src (static-input static-path)
         ts-src (hfs-seqfile ts-path)
         sink (hfs-seqfile output-path :sinkmode :replace)]
     (?- sink (forma/filter-query static-src vcf-limit ts-src))))
@@ -121,30 +142,42 @@
                            super-ecoregions)
         est-map (get-est-map s-res t-res)
         dynamic-src (hfs-seqfile dynamic-path)
-        static-src (hfs-seqfile static-path)
+        static-src (static-input static-path)
         sink (hfs-seqfile output-path :sinkmode :replace)]
     (?- sink (forma/beta-data-prep est-map dynamic-src static-src
                                    :super-ecoregions super-ecoregions))))
 
 (defmain GenBetas
+  "Generates the beta vectors at `output-path`, then packs them into
+   the beta table that `EstimateForma` ships to its tasks (see
+   `classify/beta-table-path`)."
   [s-res t-res est-start dynamic-path output-path]
   (let [est-map (get-est-map s-res t-res :est-start est-start)
         dynamic-src (hfs-seqfile dynamic-path)
-        sink (hfs-seqfile output-path :sinkmode :replace)]
-    (?- sink (forma/beta-gen est-map dynamic-src))))
+        sink (hfs-seqfile output-path :sinkmode :replace)
+        entries (hfs-textline (str (classify/beta-table-dir output-path) "/_entries")
+                              :sinkmode :replace)]
+    (?- sink (forma/beta-gen est-map dynamic-src))
+    ;; the reducer writes the table file itself
+    (with-job-conf {"mapred.reduce.tasks.speculative.execution" false}
+      (?- entries (classify/beta-table-query (classify/beta-table-path output-path)
+                                             (hfs-seqfile output-path))))))
 
 (defmain EstimateForma
+  "Estimates probabilities with the beta table that `GenBetas` packed
+   alongside the beta vectors at `beta-path`."
   [s-res t-res beta-path dynamic-path static-path output-path super-ecoregions]
   (let [super-ecoregions (if (string? super-ecoregions)
                            (read-string super-ecoregions)
                            super-ecoregions)
         est-map (get-est-map s-res t-res)
-        beta-src (hfs-seqfile beta-path)
+        table-path (classify/beta-table-path beta-path)
         dynamic-src (hfs-seqfile dynamic-path)
-        static-src (hfs-seqfile static-path)
+        static-src (static-input static-path)
         sink (hfs-seqfile output-path :sinkmode :replace)]
-    (?- sink (forma/forma-estimate est-map beta-src dynamic-src static-src
-                                   :super-ecoregions super-ecoregions))))
+    (with-job-conf (classify/beta-cache-conf table-path)
+      (?- sink (forma/forma-estimate est-map table-path dynamic-src static-src
+                                     :super-ecoregions super-ecoregions)))))
 
 (defmain ProbsPail
   [s-res t-res est-end probs-path output-path & pedigree] ;; pedigree helps w/testing
@@ -192,14 +225,54 @@
         sink (hfs-seqfile out-path :sinkmode :replace)]
     (?- sink (query est-map src :thresh thresh :pantropical true))))
 
+(defmain ApiExport
+  "Writes the long-form API data as one directory of column files per
+   ISO code and year under `out-path` (see
+   `api/prob-series->partitions`)."
+  [thresh s-res t-res forma-gadm2-path out-path]
+  (let [est-map (get-est-map s-res t-res)
+        thresh (Integer/parseInt thresh)
+        src (hfs-seqfile forma-gadm2-path)
+        sink (hfs-textline (str out-path "/_partitions") :sinkmode :replace)]
+    ;; reducers write the partition files themselves
+    (with-job-conf {"mapred.reduce.tasks.speculative.execution" false}
+      (?- sink (api/prob-series->partitions est-map src out-path thresh)))))
+
+(defmain ApiIndex
+  "Writes the partitions of `iso` for each of `years` under `api-path`,
+   as written by ApiExport, to a spatial index at the local path
+   `index-path` (see `forma.postprocess.index`)."
+  [s-res t-res api-path index-path iso & years]
+  (index/write-index! index-path s-res t-res
+                      (for [year years]
+                        [iso (api/read-api-partition
+                              (api/api-partition-path api-path iso year))])))
+
 (defmain ProbsGadm2
   [probs-path gadm2-path static-path output-path]
   (let [probs-src (hfs-seqfile probs-path)
         gadm-src (hfs-seqfile gadm2-path)
-        static-src (hfs-seqfile static-path)
+        static-src (static-input static-path)
         sink (hfs-seqfile output-path :sinkmode :replace)]
     (?- sink (forma/probs-gadm2 probs-src gadm-src static-src))))
 
+(defn tile-table-sink
+  "Returns a sink for a FormaWebsite tile table at `path` in format
+  `fmt`: a text file of PostgreSQL array strings for `:text`, or a
+  sequence file of packed period counts for `:packed`."
+  [fmt path]
+  (case fmt
+    :text (hfs-textline path :sinkmode :replace)
+    :packed (hfs-seqfile path :sinkmode :replace)))
+
+(defn tile-table-input
+  "Returns the FormaWebsite tile table at `path`, written in format
+  `fmt` (see `tile-table-sink`), as a generator of tile table tuples."
+  [fmt path]
+  (case fmt
+    :text (postprocess/tile-table-src (hfs-textline path))
+    :packed (hfs-seqfile path)))
+
 (defmain FormaWebsite
   "Convert output to common data model for use on GFW website.
 
@@ -210,24 +283,47 @@
      nodata: -9999.0
      t-res: \"16\"
      out-t-res: \"32\"
-     est-start: \"2005-12-19\""
-  [thresh z min-zoom s-res t-res out-t-res est-start nodata src-path output-path]
+     est-start: \"2005-12-19\"
+     fmt: \"text\" (the default) or \"packed\""
+  [thresh z min-zoom s-res t-res out-t-res est-start nodata src-path output-path & [fmt]]
   (let [z (Integer/parseInt z)
         min-zoom (Integer/parseInt min-zoom)
         thresh (Integer/parseInt thresh)
         nodata (Float/parseFloat nodata)
+        fmt (keyword (or fmt "text"))
         disc-map (:discount-map (get-est-map s-res t-res))
         src (hfs-seqfile src-path)
-        sink (hfs-textline output-path :sinkmode :replace)]
+        sink (tile-table-sink fmt output-path)]
     (?- sink (postprocess/forma->website src nodata z min-zoom t-res out-t-res est-start
-                                         thresh disc-map))))
+                                         thresh disc-map fmt))))
+
+(defmain FormaWebsiteUpdate
+  "Update the tile table at `prev-path`, written by FormaWebsite, with
+   hits from the period containing `since` onwards. Parameters are as
+   for FormaWebsite; `since` is a date string no later than the first
+   period added since the previous run, e.g. \"2013-06-10\". `fmt`
+   must match the format of the tile table at `prev-path`."
+  [thresh z min-zoom s-res t-res out-t-res since nodata src-path prev-path output-path
+   & [fmt]]
+  (let [z (Integer/parseInt z)
+        min-zoom (Integer/parseInt min-zoom)
+        thresh (Integer/parseInt thresh)
+        nodata (Float/parseFloat nodata)
+        fmt (keyword (or fmt "text"))
+        disc-map (:discount-map (get-est-map s-res t-res))
+        src (hfs-seqfile src-path)
+        prev-tiles (tile-table-input fmt prev-path)
+        sink (tile-table-sink fmt output-path)]
+    (?- sink (postprocess/forma->website-update src prev-tiles nodata z min-zoom
+                                                t-res out-t-res since thresh disc-map
+                                                fmt))))
 
 (defmain BlueRaster
   [s-res t-res nodata src-path static-path output-path]
   (let [nodata (Float/parseFloat nodata)
         disc-map (:discount-map (get-est-map s-res t-res))
         src (hfs-seqfile src-path)
-        static-src (hfs-seqfile static-path)
+        static-src (static-input static-path)
         sink (hfs-textline output-path :sinkmode :replace)]
     (?- sink (postprocess/forma->blue-raster src static-src nodata disc-map))))
 
@@ -244,6 +340,61 @@
   [nodata src-path static-path output-path]
   (let [nodata (Float/parseFloat nodata)
         src (hfs-seqfile src-path)
-        static (hfs-seqfile static-path)
+        static (static-input static-path)
         sink (hfs-textline output-path :sinkmode :replace)]
     (?- sink (postprocess/forma->david nodata src static))))
+
+(defmain Postprocess
+  "Generate every postprocessing product from one pass over the FORMA
+   output, sinking each to `output-path/<product>` (website,
+   country-stats, blue-raster, download, david).
+
+   Sample parameters:
+     thresh: 50
+     z: 17
+     min-zoom: 7
+     nodata: -9999.0
+     t-res: \"16\"
+     out-t-res: \"32\""
+  [thresh z min-zoom s-res t-res out-t-res nodata src-path static-path output-path]
+  (let [z (Integer/parseInt z)
+        min-zoom (Integer/parseInt min-zoom)
+        thresh (Integer/parseInt thresh)
+        nodata (Float/parseFloat nodata)
+        disc-map (:discount-map (get-est-map s-res t-res))
+        src (hfs-seqfile src-path)
+        static-src (static-input static-path)
+        products (postprocess/postprocess-products src static-src nodata z min-zoom
+                                                   thresh t-res out-t-res disc-map)]
+    (apply ?- (mapcat (fn [[product query]]
+                        [(hfs-textline (str output-path "/" (name product))
+                                       :sinkmode :replace)
+                         query])
+                      products))))
+
+(defmain MultiThreshold
+  "Generate the website, download and country-stats products for each
+   of a comma-separated list of thresholds in one pass over the FORMA
+   output, sinking each to `output-path/<product>/<thresh>`.
+
+   Sample parameters:
+     threshs: \"50,75,90\"
+     z: 17
+     min-zoom: 7
+     nodata: -9999.0
+     t-res: \"16\"
+     out-t-res: \"32\""
+  [threshs z min-zoom s-res t-res out-t-res nodata src-path output-path]
+  (let [threshs (mapv #(Integer/parseInt %) (s/split threshs #","))
+        z (Integer/parseInt z)
+        min-zoom (Integer/parseInt min-zoom)
+        nodata (Float/parseFloat nodata)
+        disc-map (:discount-map (get-est-map s-res t-res))
+        src (hfs-seqfile src-path)
+        products (postprocess/threshold-products src nodata z min-zoom threshs
+                                                 t-res out-t-res disc-map)]
+    (apply ?- (mapcat (fn [[[product thresh] query]]
+                        [(hfs-textline (format "%s/%s/%s" output-path (name product) thresh)
+                                       :sinkmode :replace)
+                         query])
+                      products))))
@@ -1,6 +1,6 @@
 (ns forma.hadoop.jobs.timeseries
   (:use cascalog.api
-        [forma.matrix.utils :only (sparse-expander)]
+        [forma.matrix.utils :only (sparse-expander conj-fill!)]
         [forma.source.tilesets :only (tile-set)])
   (:require [cascalog.ops :as c]
             [forma.reproject :as r]
@@ -31,16 +31,48 @@
          (apply map tupleize)
          (map-indexed cons))))
 
+(defbufferiterop [timeseries-iter [missing-val]]
+  "Streaming version of `timeseries`. Consumes `<t-period,
+  modis-chunk>` tuples one at a time, appending each chunk value onto
+  a per-pixel accumulator and filling any gap between consecutive
+  periods with `missing-val` on the fly. The group is never realized
+  as a whole, so memory use is bounded by the output timeseries rather
+  than by the incoming tuples.
+
+  Entering chunks MUST be secondary sorted by `t-period` in ascending
+  order (see `form-tseries`). Output matches `timeseries`."
+  [tuples-iter]
+  (let [[fp lp ^objects accs]
+        (reduce (fn [[fp lp ^objects accs] [period chunk]]
+                  (let [vals (vec (thrift/unpack chunk))
+                        gap (if lp (dec (- period lp)) 0)
+                        ^objects accs (or accs
+                                          (object-array (repeatedly (count vals)
+                                                                    #(transient []))))]
+                    (dotimes [i (alength accs)]
+                      (aset accs i (-> (aget accs i)
+                                       (conj-fill! gap missing-val)
+                                       (conj! (vals i)))))
+                    [(or fp period) period accs]))
+                [nil nil nil]
+                (iterator-seq tuples-iter))]
+    (when accs
+      (for [i (range (alength accs))]
+        [i fp lp (thrift/pack (persistent! (aget accs i)))]))))
+
 (defn form-tseries
   "Returns a predicate macro aggregator that generates a timeseries,
   given `?chunk`, `?temporal-resolution` and `?date`. Currently only
-  functions when `?chunk` is a vector."
+  functions when `?chunk` is a vector.
+
+  Relies on the secondary sort on `?tperiod` to stream chunks through
+  `timeseries-iter`."
   [missing-val]
   {:pre [(number? missing-val)]}
   (<- [?temporal-res ?date ?chunk :> ?pix-idx ?t-start ?t-end ?tseries]
       (date/datetime->period ?temporal-res ?date :> ?tperiod)
       (:sort ?tperiod)
-      (timeseries [missing-val] ?tperiod ?chunk :> ?pix-idx ?t-start ?t-end ?tseries)))
+      (timeseries-iter [missing-val] ?tperiod ?chunk :> ?pix-idx ?t-start ?t-end ?tseries)))
 
 (defn extract-tseries
   "Given a source of chunks, this subquery extracts the proper
@@ -113,6 +145,101 @@
         (running-fire-sum start ?tseries :> ?fire-series)
         (:distinct true))))
 
+;; #### Dense Fire Accumulation
+;;
+;; `aggregate-fires` and `sum-fire-series` expand every pixel into a
+;; sparse vector of `FireValue` objects and thread it through
+;; `reductions schema/add-fires`, unpacking and repacking a Thrift
+;; object at each step. The functions below bin each pixel's
+;; detections straight into primitive count arrays (one per
+;; `FireValue` field), compute the running sums in place and only
+;; build `FireValue`s on the way out.
+
+(defn fire-bins
+  "Returns a vector of four zeroed int arrays of the supplied length,
+  one for each `FireValue` field: temp330, conf50, bothPreds and
+  count."
+  [length]
+  (vec (repeatedly 4 #(int-array length))))
+
+(defn bin-fires!
+  "Adds the supplied `FireValue` field values to the count arrays in
+  `bins` at index `idx`. Returns `bins`."
+  [bins idx fire-vals]
+  (let [idx (int idx)]
+    (doseq [[^ints arr v] (map vector bins fire-vals)]
+      (aset arr idx (+ (aget arr idx) (int v)))))
+  bins)
+
+(defn running-sums!
+  "Replaces each count array in `bins` with its running sum, in
+  place. Returns `bins`.
+
+  Example usage:
+    (map vec (running-sums! [(int-array [1 0 2])])) => ([1 1 3])"
+  [bins]
+  (doseq [^ints arr bins]
+    (loop [i 1]
+      (when (< i (alength arr))
+        (aset arr i (+ (aget arr i) (aget arr (dec i))))
+        (recur (inc i)))))
+  bins)
+
+(defn bins->fire-series
+  "Returns a `TimeSeries` of `FireValue`s beginning at period `start`,
+  built from the supplied vector of count arrays."
+  [start [temp-330 conf-50 both-preds fire-count]]
+  (->> (map thrift/FireValue* temp-330 conf-50 both-preds fire-count)
+       (thrift/TimeSeries* start)))
+
+(defn bin-fire-tuples
+  "Bins a sequence of `<period, temp-330, conf-50, both-preds, count>`
+  tuples into count arrays covering `length` periods beginning at
+  `start`. Periods outside that window are dropped."
+  [start length tuples]
+  (let [bins (fire-bins length)]
+    (doseq [[period & fire-vals] tuples
+            :let [idx (- period start)]
+            :when (and (>= idx 0) (< idx length))]
+      (bin-fires! bins idx fire-vals))
+    bins))
+
+(defbufferiterop [dense-fire-series [start length]]
+  "Receives `<period, temp-330, conf-50, both-preds, count>` tuples for
+  a single pixel and bins them into primitive count arrays covering
+  `length` periods beginning at `start`. Emits a single running-sum
+  fire `TimeSeries`, the same value produced by `sum-fire-series`."
+  [tuples-iter]
+  (->> (iterator-seq tuples-iter)
+       (bin-fire-tuples start length)
+       (running-sums!)
+       (bins->fire-series start)
+       (vector)
+       (vector)))
+
+(defn accumulate-fires
+  "Bins fire DataChunks straight into running-sum fire series at
+  temporal resolution `t-res`, replacing the `aggregate-fires` ->
+  `sum-fire-series` round trip through sparse vectors of `FireValue`s.
+  Detections are first summed by pixel and period with parallel
+  aggregators, so that only one tuple per pixel and period reaches
+  `dense-fire-series`."
+  [src t-res start length]
+  (let [period-src (<- [?name ?s-res ?h ?v ?sample ?line ?tperiod
+                        ?temp-330 ?conf-50 ?both-preds ?count]
+                       (src ?pixel-chunk)
+                       (thrift/unpack ?pixel-chunk :> ?name ?pixel-loc ?data-val _ ?date _)
+                       (thrift/unpack ?data-val :> ?temp ?conf ?both ?n)
+                       (thrift/unpack ?pixel-loc :> ?s-res ?h ?v ?sample ?line)
+                       (date/ymd->period t-res ?date :> ?tperiod)
+                       (c/sum ?temp ?conf ?both ?n
+                              :> ?temp-330 ?conf-50 ?both-preds ?count))]
+    (<- [?name ?s-res ?h ?v ?sample ?line ?fire-series]
+        (period-src ?name ?s-res ?h ?v ?sample ?line ?tperiod
+                    ?temp-330 ?conf-50 ?both-preds ?count)
+        (dense-fire-series [start length] ?tperiod ?temp-330 ?conf-50 ?both-preds ?count
+                           :> ?fire-series))))
+
 (defn create-fire-series
   "Aggregates fires into running sum timeseries.
 
@@ -124,14 +251,109 @@
   (let [pedigree (thrift/epoch)
         [start end] (map (partial date/datetime->period t-res) [fires-start end-date])
         length (inc (- end start))
-        series-src (aggregate-fires src t-res)
-        fire-sum-src (sum-fire-series series-src start length t-res)]
+        fire-sum-src (accumulate-fires src t-res start length)]
     (<- [?pixel-chunk]
         (fire-sum-src ?name ?s-res ?h ?v ?sample ?line ?fire-series)
         (thrift/ModisPixelLocation* ?s-res ?h ?v ?sample ?line :> ?pixel-loc)
         (thrift/DataChunk* ?name ?pixel-loc ?fire-series t-res :pedigree pedigree :> ?pixel-chunk)
         (:distinct false))))
 
+;; #### Incremental Fire Updates
+;;
+;; Rather than rebuilding every series from `fire-start`, an update
+;; folds fire DataChunks added to the pail since the last run (judged
+;; by `Pedigree.trueAsOfSecs`) into the previous run's running-sum
+;; series. Only pixels with new fires are re-binned; every other
+;; series just has its final value repeated out to the new end period.
+
+(defbufferop [fire-increments [end]]
+  "Receives `<period, temp-330, conf-50, both-preds, count>` tuples of
+  new fire detections for a single pixel, and returns their running
+  sum as a fire `TimeSeries` running from the earliest new period
+  through `end`."
+  [tuples]
+  (let [start (apply min (map first tuples))]
+    [[(->> tuples
+           (bin-fire-tuples start (inc (- end start)))
+           (running-sums!)
+           (bins->fire-series start))]]))
+
+(defn pad-fire-series
+  "Extends a running-sum fire `TimeSeries` through period `end` by
+  repeating its final `FireValue`. Series that already reach `end` are
+  returned untouched."
+  [end fire-series]
+  (let [[start series-end arr-val] (thrift/unpack fire-series)]
+    (if (>= series-end end)
+      fire-series
+      (let [fires (thrift/unpack arr-val)]
+        (thrift/TimeSeries* start end (concat fires (repeat (- end series-end)
+                                                            (peek fires))))))))
+
+(defn add-fire-increments
+  "Returns a fire `TimeSeries` through period `end` made by adding the
+  running sum of new fires, `new-series`, onto the padded running-sum
+  series `fire-series`. New fires dated before the start of
+  `fire-series` are dropped."
+  [end fire-series new-series]
+  (let [[start _ arr-val] (thrift/unpack (pad-fire-series end fire-series))
+        [new-start _ new-arr-val] (thrift/unpack new-series)
+        length (inc (- end start))
+        bins (fire-bins length)]
+    (doseq [[idx fire] (map-indexed vector (thrift/unpack arr-val))]
+      (bin-fires! bins idx (thrift/unpack fire)))
+    (doseq [[offset fire] (map-indexed vector (thrift/unpack new-arr-val))
+            :let [idx (+ offset (- new-start start))]
+            :when (and (>= idx 0) (< idx length))]
+      (bin-fires! bins idx (thrift/unpack fire)))
+    (bins->fire-series start bins)))
+
+(defn update-fire-series
+  "Returns the updated running-sum fire series for a pixel, given its
+  series from the previous run (or `nil` if it had no fires) and the
+  running sum of its new fires (or `nil` if there are none). Pixels
+  with no earlier fires start from an all-zero series beginning at
+  period `start`, so that all series continue to share a start."
+  [start end prev-series new-series]
+  (let [prev-series (or prev-series
+                        (->> (thrift/FireValue* 0 0 0 0)
+                             (repeat (inc (- end start)))
+                             (thrift/TimeSeries* start end)))]
+    (if new-series
+      (add-fire-increments end prev-series new-series)
+      (pad-fire-series end prev-series))))
+
+(defn new-fires
+  "Returns a source of `<s-res, h, v, sample, line, fire-series>`
+  tuples, where `fire-series` is the running sum through `end` of the
+  fire DataChunks in `chunk-src` created after `since` (seconds since
+  the epoch)."
+  [chunk-src t-res end since]
+  (<- [?s-res ?h ?v ?sample ?line ?new-series]
+      (chunk-src ?pixel-chunk)
+      (thrift/unpack ?pixel-chunk :> _ ?pixel-loc ?data-val _ ?date ?pedigree)
+      (thrift/unpack ?pedigree :> ?created)
+      (> ?created since)
+      (thrift/unpack ?data-val :> ?temp-330 ?conf-50 ?both-preds ?count)
+      (thrift/unpack ?pixel-loc :> ?s-res ?h ?v ?sample ?line)
+      (date/ymd->period t-res ?date :> ?tperiod)
+      (<= ?tperiod end)
+      (fire-increments [end] ?tperiod ?temp-330 ?conf-50 ?both-preds ?count
+                       :> ?new-series)))
+
+(defn fire-update-query
+  "Extends the running-sum fire series in `prev-src` (the output of
+  `forma.hadoop.jobs.forma/fire-tap`) through `end-date`, folding in
+  only those fire DataChunks from `chunk-src` created after `since`."
+  [prev-src chunk-src t-res fires-start end-date since]
+  (let [[start end] (map (partial date/datetime->period t-res) [fires-start end-date])
+        new-src (new-fires chunk-src t-res end since)]
+    (<- [?s-res ?h ?v ?sample ?line ?fire-series]
+        (prev-src ?s-res ?h ?v ?sample ?line !!prev-series)
+        (new-src ?s-res ?h ?v ?sample ?line !!new-series)
+        (update-fire-series start end !!prev-series !!new-series :> ?fire-series)
+        (:distinct false))))
+
 (defn fire-query
   "Returns a source of fire timeseries data chunk objects."
   [src m-res t-res fires-start end-date]
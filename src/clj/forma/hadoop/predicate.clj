@@ -183,16 +183,44 @@
 
 ;; ### Generators
 
+(defn pixel-splits
+  "Returns a lazy sequence of `[h v start-line end-line]` splits that
+  together cover every line of every tile in `tileseq` at the
+  supplied resolution, `rows-per-split` lines at a time.
+
+  Example usage:
+    (pixel-splits \"1000\" [[8 6]] 500)
+    ;=> ([8 6 0 500] [8 6 500 1000] [8 6 1000 1200])"
+  [res tileseq rows-per-split]
+  (let [lines (pixels-at-res res)]
+    (for [[h v] tileseq
+          start (range 0 lines rows-per-split)]
+      [h v start (min lines (+ start rows-per-split))])))
+
+(defmapcatop [expand-split [res]]
+  "Expands a split of lines from `pixel-splits` into the sample and
+  line of every pixel it covers."
+  [start-line end-line]
+  (for [line (range start-line end-line)
+        sample (range (pixels-at-res res))]
+    [sample line]))
+
 (defn pixel-generator
   "Returns a Cascalog generator that emits MODIS pixel tuples
   [?mod-h ?mod-v ?sample ?line] for a set of MODIS tiles at a given spatial
   resolution.
 
+  Only the row-range splits of each tile (see `pixel-splits`) are
+  written from the driver; mappers expand them into pixels. A split
+  file is small, so jobs reading it should ask for more map tasks
+  (`mapred.map.tasks`) to spread the expansion across the cluster.
+
   Arguments:
-    tmp-path - A staging directory for writing tuples to a sequence file.
+    tmp-path - A staging directory for writing splits to a sequence file.
     res - The spatial resolution.
-    tileseq - Map of country ISO keywords to MODIS tiles (see: forma.source.tilesets)"
-  [tmp-path res tileseq]
+    tileseq - Map of country ISO keywords to MODIS tiles (see: forma.source.tilesets)
+    rows-per-split - Optional number of tile lines per split (default 10)"
+  [tmp-path res tileseq & {:keys [rows-per-split] :or {rows-per-split 10}}]
   {:pre [(coll? tileseq)
          (string? res)]}
   (let [tap (:sink (hfs-seqfile tmp-path))]
@@ -200,12 +228,13 @@
                 (-> (hadoop/job-conf (conf/project-conf))
                     (HadoopFlowProcess.)
                     (.openTapForWrite tap))]
-      (doseq [item (for [[h v]  tileseq
-                         sample (range (pixels-at-res res))
-                         line (range (pixels-at-res res))]
-                     [h v sample line])]
-        (.add collector (Util/coerceToTuple item))))
-    (name-vars tap ["?mod-h" "?mod-v" "?sample" "?line"])))
+      (doseq [split (pixel-splits res tileseq rows-per-split)]
+        (.add collector (Util/coerceToTuple split))))
+    (let [src (name-vars tap ["?mod-h" "?mod-v" "?start" "?end"])]
+      (<- [?mod-h ?mod-v ?sample ?line]
+          (src ?mod-h ?mod-v ?start ?end)
+          (expand-split [res] ?start ?end :> ?sample ?line)
+          (:distinct false)))))
 
 ;; ### Special Functions
 
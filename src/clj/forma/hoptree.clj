@@ -151,3 +151,49 @@
         short-row (fn [x] [(dec x) x (inc x)])]
     (flatten
      (map short-row [(- idx total-row) idx (+ idx total-row)]))))
+
+;; Z-order (Morton) indices interleave the bits of a global row and
+;; column, so that pixels which are close on the global grid tend to
+;; be close in index order. Sorting by Z-order keeps each run of
+;; records spatially compact, which is what lets a spatial index skip
+;; whole blocks of them.
+
+(defn rowcol->zindex
+  "accepts a row and column and returns the Z-order index, found by
+  interleaving their bits with the column in the lowest bit.
+
+  EXAMPLE:
+  (rowcol->zindex 1 2) => 6"
+  [row col]
+  (let [row (long row)
+        col (long col)]
+    (loop [bit 0, z 0]
+      (if (< bit 31)
+        (recur (inc bit)
+               (bit-or z
+                       (bit-shift-left (bit-and (bit-shift-right col bit) 1) (* 2 bit))
+                       (bit-shift-left (bit-and (bit-shift-right row bit) 1) (inc (* 2 bit)))))
+        z))))
+
+(defn zindex->rowcol
+  "accepts a Z-order index and returns the [row col] it was built from.
+
+  EXAMPLE:
+  (zindex->rowcol 6) => [1 2]"
+  [z]
+  (let [z (long z)]
+    (loop [bit 0, row 0, col 0]
+      (if (< bit 31)
+        (recur (inc bit)
+               (bit-or row (bit-shift-left (bit-and (bit-shift-right z (inc (* 2 bit))) 1) bit))
+               (bit-or col (bit-shift-left (bit-and (bit-shift-right z (* 2 bit)) 1) bit)))
+        [row col]))))
+
+(defn global-zindex
+  "returns the Z-order index of the global row and column of the
+  supplied pixel (any location accepted by `global-rowcol`).
+
+  EXAMPLE:
+  (global-zindex \"500\" (TileRowCol* [28 8 0 0])) => 4842209280"
+  [sres t]
+  (apply rowcol->zindex (global-rowcol sres t)))
@@ -142,6 +142,19 @@
               (when pos (> idx pos)) (recur (inc idx) more (conj! v placeholder))
               :else (recur (inc idx) tup-seq (conj! v placeholder)))))))
 
+(defn conj-fill!
+  "Conjoins `n` copies of `val` onto the supplied transient vector and
+  returns the result. Used to fill holes in a timeseries that is built
+  up incrementally, without going through `sparse-expander`.
+
+  Example usage:
+    (persistent! (conj-fill! (transient [1]) 2 0)) => [1 0 0]"
+  [acc n val]
+  (loop [acc acc, n n]
+    (if (pos? n)
+      (recur (conj! acc val) (dec n))
+      acc)))
+
 (defn sparse-prep
   "Cleans up data for use with `sparse-expander`, removing Cascalog
    nesting and weaving separate index and value fields into
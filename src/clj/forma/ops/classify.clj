@@ -4,7 +4,14 @@
   (:use [forma.classify.logistic]
         [cascalog.api])
   (:require [cascalog.ops :as c]
-            [forma.thrift :as thrift]))
+            [clojure.java.io :as io]
+            [clojure.string :as s]
+            [forma.thrift :as thrift])
+  (:import [forma.schema FireValue FormaValue NeighborValue]
+           [java.io DataInputStream DataOutputStream]
+           [org.jblas DoubleMatrix]
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs Path]))
 
 (defn unpack-feature-vec
   "Creates a persistent vector from forma- and neighbor-val objects;
@@ -20,16 +27,82 @@
     (into [] (concat [1] fire-seq [short long t-stat break]
                      fire-neighbor more))))
 
+;; ## Feature Vectors
+;;
+;; `unpack-feature-vec` documents the feature layout, but builds a
+;; fresh persistent vector out of four `thrift/unpack` calls for every
+;; pixel. The functions below write the same features, in the same
+;; order, straight into primitive arrays:
+;;
+;;     0      intercept (always 1)
+;;     1-4    fire: temp330, conf50, bothPreds, count
+;;     5-8    shortDrop, longDrop, tStat, paramBreak
+;;     9-12   neighbor fire: temp330, conf50, bothPreds, count
+;;     13-20  neighbor avgShortDrop, minShortDrop, avgLongDrop,
+;;            minLongDrop, avgTStat, minTStat, avgParamBreak,
+;;            maxParamBreak
+
+(def ^:const feature-count 21)
+
+(defn- fill-fire-features!
+  [^doubles row offset ^FireValue fire]
+  (let [offset (int offset)]
+    (aset row offset (double (.getTemp330 fire)))
+    (aset row (+ offset 1) (double (.getConf50 fire)))
+    (aset row (+ offset 2) (double (.getBothPreds fire)))
+    (aset row (+ offset 3) (double (.getCount fire)))))
+
+(defn fill-features!
+  "Writes the features of the supplied pixel into `row`, a double
+  array of length `feature-count` that may be reused across pixels,
+  and returns `row`.
+
+  Example usage:
+    (vec (fill-features! (double-array feature-count)
+                         forma-val neighbor-val))"
+  [^doubles row ^FormaValue forma-val ^NeighborValue neighbor-val]
+  (aset row 0 1.0)
+  (fill-fire-features! row 1 (.getFireValue forma-val))
+  (aset row 5 (.getShortDrop forma-val))
+  (aset row 6 (.getLongDrop forma-val))
+  (aset row 7 (.getTStat forma-val))
+  (aset row 8 (.getParamBreak forma-val))
+  (fill-fire-features! row 9 (.getFireValue neighbor-val))
+  (aset row 13 (.getAvgShortDrop neighbor-val))
+  (aset row 14 (.getMinShortDrop neighbor-val))
+  (aset row 15 (.getAvgLongDrop neighbor-val))
+  (aset row 16 (.getMinLongDrop neighbor-val))
+  (aset row 17 (.getAvgTStat neighbor-val))
+  (aset row 18 (.getMinTStat neighbor-val))
+  (aset row 19 (.getAvgParamBreak neighbor-val))
+  (aset row 20 (.getMaxParamBreak neighbor-val))
+  row)
+
+(defn feature-matrix
+  "Returns a DoubleMatrix with one row of features for each of the
+  supplied `[forma-val neighbor-val]` pairs, written directly into the
+  matrix's (column-major) backing array."
+  [pairs]
+  (let [n (count pairs)
+        mat (DoubleMatrix. (int n) (int feature-count))
+        ^doubles data (.data mat)
+        ^doubles row (double-array feature-count)]
+    (loop [i 0, pairs (seq pairs)]
+      (when pairs
+        (let [[forma-val neighbor-val] (first pairs)]
+          (fill-features! row forma-val neighbor-val)
+          (dotimes [j feature-count]
+            (aset data (+ i (* j n)) (aget row j)))
+          (recur (inc i) (next pairs)))))
+    mat))
+
 (defbufferop [logistic-beta-wrap [r c m]]
   "Accepts all tuples within an ecoregion and returns a coefficient
   vector resulting from a logistic regression."
   [tuples]
-  (let [make-binary  (fn [x] (if (zero? x) 0 1))
-        pixel-features (for [x tuples]
-                         (let [[label val neighbor] x]
-                           [(make-binary label) (unpack-feature-vec val neighbor)]))]
-    [[(logistic-beta-vector (to-double-rowmat (map first pixel-features))
-                            (to-double-matrix (map second pixel-features))
+  (let [make-binary (fn [x] (if (zero? x) 0 1))]
+    [[(logistic-beta-vector (to-double-rowmat (map (comp make-binary first) tuples))
+                            (feature-matrix (map rest tuples))
                             r c m)]]))
 
 (defn logistic-prob-wrap
@@ -41,13 +114,124 @@
         features-mat (to-double-rowmat (unpack-feature-vec val neighbor-val))]
     (flatten (vec (.toArray (logistic-prob beta-mat features-mat))))))
 
-(defn beta-dict
+(defn logistic-score
+  "Primitive counterpart to `logistic-prob`: returns the value of the
+  logistic curve at the dot product of the supplied beta and feature
+  arrays, without building any intermediate matrices.
+
+  Example usage:
+    (logistic-score (double-array [0 0]) (double-array [1 2]))
+    ;=> 0.5"
+  ^double [^doubles beta ^doubles features]
+  (let [n (alength beta)]
+    (loop [i 0, dot 0.0]
+      (if (< i n)
+        (recur (inc i) (+ dot (* (aget beta i) (aget features i))))
+        (let [exp-dot (Math/exp dot)]
+          (/ exp-dot (+ exp-dot 1.0)))))))
+
+(defn score-pixel
+  "Returns the probability of deforestation for a pixel, given its
+  ecoregion's beta array and its within-pixel and neighboring
+  values. `row` is a scratch array of length `feature-count`."
+  [^doubles beta ^doubles row forma-val neighbor-val]
+  (logistic-score beta (fill-features! row forma-val neighbor-val)))
+
+;; ## Beta Tables
+;;
+;; Classification needs the beta vector of every pixel's ecoregion. A
+;; beta table maps each (long) ecoregion id to a primitive double
+;; array of coefficients. For production runs the table is written to
+;; a compact binary file and shipped to every task through the Hadoop
+;; distributed cache, so that it is read once per task rather than
+;; serialized into the job.
+
+(defn beta-table
   "Accepts a source of beta vectors, indexed by ecoregion; returns a
-  dictionary with the ecoregions as keys and the beta vectors as
-  values."
+  beta table, mapping each ecoregion id to a double array."
   [beta-src]
-  (let [src (name-vars beta-src ["?s-res" "?eco" "?beta"])
-        beta-vec (??<- [?eco ?beta] (src _ ?eco ?beta))]
-    (apply merge
-           (for [[eco beta] beta-vec]
-             {((comp keyword str) eco) beta}))))
+  (let [src (name-vars beta-src ["?s-res" "?eco" "?beta"])]
+    (into {} (for [[eco beta] (??<- [?eco ?beta] (src _ ?eco ?beta))]
+               [(long eco) (double-array beta)]))))
+
+(defn write-beta-table!
+  "Writes the supplied beta table to `path` (on any Hadoop filesystem)
+  as an entry count followed by `ecoregion, length, coefficients...`
+  for each ecoregion."
+  [path table]
+  (let [path (Path. (str path))
+        fs (.getFileSystem path (Configuration.))]
+    (with-open [out (DataOutputStream. (.create fs path true))]
+      (.writeInt out (count table))
+      (doseq [[eco ^doubles beta] table]
+        (.writeLong out (long eco))
+        (.writeInt out (alength beta))
+        (dotimes [i (alength beta)]
+          (.writeDouble out (aget beta i)))))))
+
+(defn read-beta-table
+  "Reads a beta table written by `write-beta-table!`."
+  [path]
+  (let [path (Path. (str path))
+        fs (.getFileSystem path (Configuration.))]
+    (with-open [in (DataInputStream. (.open fs path))]
+      (into {} (for [_ (range (.readInt in))]
+                 (let [eco (.readLong in)
+                       beta (double-array (.readInt in))]
+                   (dotimes [i (alength beta)]
+                     (aset beta i (.readDouble in)))
+                   [eco beta]))))))
+
+(defn beta-table-dir
+  "Returns the directory that `GenBetas` packs the beta vectors at
+  `beta-path` into."
+  [beta-path]
+  (str (s/replace beta-path #"/$" "") "-table"))
+
+(defn beta-table-path
+  "Returns the path of the beta table packed from the beta vectors at
+  `beta-path` (see `beta-table-query`)."
+  [beta-path]
+  (str (beta-table-dir beta-path) "/betas"))
+
+(defbufferop [pack-beta-table [path]]
+  "Receives the `<ecoregion, beta>` tuples of a beta source and writes
+  them to `path` as a beta table. Returns the number of ecoregions
+  written."
+  [tuples]
+  (let [table (into {} (for [[eco beta] tuples]
+                         [(long eco) (double-array beta)]))]
+    (write-beta-table! path table)
+    [(count table)]))
+
+(defn beta-table-query
+  "Returns a query that writes the beta vectors in `beta-src` to a
+  beta table at `path` from a single reducer, so that the table is
+  built on the cluster rather than pulled through the driver. Emits
+  the number of ecoregions written; sink it to `_entries` in the
+  table's directory."
+  [path beta-src]
+  (let [src (name-vars beta-src ["?s-res" "?eco" "?beta"])]
+    (<- [?count]
+        (src _ ?eco ?beta)
+        (pack-beta-table [path] ?eco ?beta :> ?count))))
+
+(def beta-cache-link "beta-table")
+
+(defn beta-cache-conf
+  "Returns the job configuration that ships the beta table at `path`
+  to every task through the distributed cache, for use with
+  `with-job-conf`."
+  [path]
+  {"mapred.cache.files" (str path "#" beta-cache-link)
+   "mapred.create.symlink" "yes"})
+
+(defn load-beta-table
+  "Loads the beta table at `path`, preferring the task-local copy
+  linked by the distributed cache (see `beta-cache-conf`) when there
+  is one, as there is not in local mode."
+  [path]
+  (let [local (io/file beta-cache-link)]
+    (read-beta-table (if (.exists local)
+                       (str (.toURI local))
+                       path))))
@@ -0,0 +1,286 @@
+(ns forma.postprocess.index
+  "A spatially indexed store of FORMA results, for serving point and
+  bounding box queries by date range from a local file, without a
+  database.
+
+  The index is built from the columnar API partitions written by
+  `forma.hadoop.jobs.api/prob-series->partitions`, and queries return
+  rows in the form of the API output, `[lat lon iso gadm2 date
+  prob]`. Rows are sorted by the Z-order index of their MODIS pixel
+  (see `forma.hoptree/global-zindex`) and written in fixed-size
+  blocks. A small block index up front holds each block's Z-order,
+  latitude, longitude and date ranges, so a query reads only the
+  blocks that can hold matching rows."
+  (:require [forma.reproject :as r]
+            [forma.hoptree :as h]
+            [forma.date-time :as date])
+  (:import [java.io BufferedOutputStream DataInputStream DataOutputStream
+            FileInputStream FileOutputStream RandomAccessFile]
+           [java.nio ByteBuffer]
+           [java.util Arrays]))
+
+;; "FIDX" in ASCII.
+(def index-magic 0x46494458)
+
+;; magic, s-res, row count, block size and block count.
+(def ^:const header-bytes 20)
+
+;; Z-order range (longs), latitude and longitude ranges (doubles) and
+;; date range (ints).
+(def ^:const block-entry-bytes 56)
+
+;; Z-order index, lat, lon, date, gadm2, ISO code (3 bytes) and prob.
+(def ^:const record-bytes 36)
+
+(defn- date->int
+  "Returns the date string `YYYY-MM-DD` as the integer `YYYYMMDD`."
+  [^String date]
+  (Integer/parseInt (.replace date "-" "")))
+
+(defn- int->date
+  "Reverses `date->int`."
+  [d]
+  (format "%04d-%02d-%02d" (quot d 10000) (rem (quot d 100) 100) (rem d 100)))
+
+(defn pixel-zindex
+  "Returns the Z-order index, on the global grid at `s-res`, of the
+  MODIS pixel containing `lat` and `lon`."
+  [s-res lat lon]
+  (let [[mod-h mod-v sample line] (r/latlon->modis s-res lat lon)]
+    (h/global-zindex s-res (h/TileRowCol* mod-h mod-v sample line))))
+
+(defn- zindices
+  "Returns a long array of the `pixel-zindex` of each of `lats` and
+  `lons`."
+  ^longs [s-res ^doubles lats ^doubles lons]
+  (let [[^ints hs ^ints vs ^ints samples ^ints lines] (r/latlons->modis s-res lats lons)
+        edge (long (r/pixels-at-res s-res))
+        zs (long-array (alength lats))]
+    (dotimes [i (alength zs)]
+      (aset zs i (long (h/rowcol->zindex (+ (aget lines i) (* edge (aget vs i)))
+                                         (+ (aget samples i) (* edge (aget hs i)))))))
+    zs))
+
+(defn- concat-arrays
+  "Returns an array made by `make` holding the elements of each of
+  `arrs` in turn."
+  [make arrs]
+  (let [out (make (reduce + (map count arrs)))]
+    (reduce (fn [offset arr]
+              (System/arraycopy arr 0 out (int offset) (int (count arr)))
+              (+ offset (count arr)))
+            0 arrs)
+    out))
+
+(defn- zorder
+  "Returns an int array of the indices of `zs` in ascending order of
+  their value, with ties in index order. Sorts a single long array of
+  keys that pack each Z-order index above its position."
+  ^ints [^longs zs]
+  (let [n (alength zs)
+        shift (- 64 (Long/numberOfLeadingZeros (max 1 n)))
+        mask (dec (bit-shift-left 1 shift))
+        keys (long-array n)
+        order (int-array n)]
+    (dotimes [i n]
+      (let [z (aget zs i)]
+        (assert (< z (bit-shift-left 1 (- 63 shift))) "Z-order index out of range.")
+        (aset keys i (bit-or (bit-shift-left z shift) i))))
+    (Arrays/sort keys)
+    (dotimes [i n]
+      (aset order i (int (bit-and (aget keys i) mask))))
+    order))
+
+(defn write-index!
+  "Writes `partitions`, a sequence of `[iso columns]` pairs with
+  `columns` as returned by `forma.hadoop.jobs.api/read-api-partition`,
+  to a spatial index at `path`, keyed by MODIS pixel at `s-res`.
+  Periods are at temporal resolution `t-res`. Rows are sorted by
+  Z-order index, and by date within each pixel, and written in blocks
+  of `block-size` rows. Pixels are sorted in place of rows, and rows
+  are laid out as primitive arrays of pixels, dates and probabilities."
+  [path s-res t-res partitions & {:keys [block-size] :or {block-size 256}}]
+  (let [cols (map second partitions)
+        ^doubles lats (concat-arrays double-array (map :lat cols))
+        ^doubles lons (concat-arrays double-array (map :lon cols))
+        ^ints gadms (concat-arrays int-array (map :gadm2 cols))
+        ^ints starts (concat-arrays int-array (map :start cols))
+        probs (vec (mapcat :probs cols))
+        ^ints isos (concat-arrays int-array
+                                  (map-indexed (fn [k col] (int-array (count (:lat col)) k))
+                                               cols))
+        iso-bytes (mapv (fn [[iso _]] (.getBytes (subs (str iso "   ") 0 3) "US-ASCII"))
+                        partitions)
+        np (alength lats)
+        ^longs zs (zindices s-res lats lons)
+        ^ints order (zorder zs)
+        ;; dates of every period spanned, as integers
+        p0 (if (pos? np) (long (apply min starts)) 0)
+        p1 (reduce max p0 (map (fn [i] (+ (aget starts i) (count (probs i))))
+                               (range np)))
+        ^ints dates (int-array (for [p (range p0 p1)]
+                                 (date->int (date/period->datetime t-res p))))
+        n (long (reduce + (map count probs)))
+        bs (long block-size)
+        nblocks (quot (+ n bs -1) bs)
+        [^longs min-zs ^longs max-zs] (repeatedly 2 #(long-array nblocks))
+        [^doubles min-lats ^doubles max-lats
+         ^doubles min-lons ^doubles max-lons] (repeatedly 4 #(double-array nblocks))
+        [^ints min-dates ^ints max-dates] (repeatedly 2 #(int-array nblocks))
+        row-pixels (int-array n)
+        row-dates (int-array n)
+        row-probs (byte-array n)]
+    (loop [k 0, row 0]
+      (when (< k np)
+        (let [p (aget order k)
+              ^bytes ps (probs p)
+              d0 (- (aget starts p) p0)]
+          (dotimes [j (alength ps)]
+            (aset row-pixels (+ row j) p)
+            (aset row-dates (+ row j) (aget dates (+ d0 j)))
+            (aset row-probs (+ row j) (aget ps j)))
+          (recur (inc k) (+ row (alength ps))))))
+    (dotimes [row n]
+      (let [b (quot row bs)
+            p (aget row-pixels row)
+            d (aget row-dates row)
+            z (aget zs p), lat (aget lats p), lon (aget lons p)]
+        (if (zero? (rem row bs))
+          (do (aset min-zs b z)
+              (aset min-lats b lat) (aset max-lats b lat)
+              (aset min-lons b lon) (aset max-lons b lon)
+              (aset min-dates b d) (aset max-dates b d))
+          (do (aset min-lats b (Math/min (aget min-lats b) lat))
+              (aset max-lats b (Math/max (aget max-lats b) lat))
+              (aset min-lons b (Math/min (aget min-lons b) lon))
+              (aset max-lons b (Math/max (aget max-lons b) lon))
+              (aset min-dates b (Math/min (aget min-dates b) d))
+              (aset max-dates b (Math/max (aget max-dates b) d))))
+        (aset max-zs b z)))
+    (with-open [out (DataOutputStream.
+                     (BufferedOutputStream. (FileOutputStream. (str path))))]
+      (doseq [x [index-magic (Integer/parseInt s-res) n block-size nblocks]]
+        (.writeInt out (int x)))
+      (dotimes [b nblocks]
+        (.writeLong out (aget min-zs b))
+        (.writeLong out (aget max-zs b))
+        (.writeDouble out (aget min-lats b))
+        (.writeDouble out (aget max-lats b))
+        (.writeDouble out (aget min-lons b))
+        (.writeDouble out (aget max-lons b))
+        (.writeInt out (aget min-dates b))
+        (.writeInt out (aget max-dates b)))
+      (dotimes [row n]
+        (let [p (aget row-pixels row)]
+          (.writeLong out (aget zs p))
+          (.writeDouble out (aget lats p))
+          (.writeDouble out (aget lons p))
+          (.writeInt out (aget row-dates row))
+          (.writeInt out (aget gadms p))
+          (.write out ^bytes (iso-bytes (aget isos p)))
+          (.writeByte out (int (aget row-probs row))))))))
+
+(defrecord SpatialIndex [path s-res n block-size
+                         min-zs max-zs min-lats max-lats min-lons max-lons
+                         min-dates max-dates])
+
+(defn open-index
+  "Reads the header and block index of the spatial index at `path`."
+  [path]
+  (with-open [in (DataInputStream. (FileInputStream. (str path)))]
+    (let [magic (.readInt in)
+          _ (assert (= index-magic magic) (str path " is not a spatial index."))
+          s-res (str (.readInt in))
+          n (.readInt in)
+          block-size (.readInt in)
+          nblocks (.readInt in)
+          [min-zs max-zs] (repeatedly 2 #(long-array nblocks))
+          [min-lats max-lats min-lons max-lons] (repeatedly 4 #(double-array nblocks))
+          [min-dates max-dates] (repeatedly 2 #(int-array nblocks))]
+      (dotimes [b nblocks]
+        (aset ^longs min-zs b (.readLong in))
+        (aset ^longs max-zs b (.readLong in))
+        (aset ^doubles min-lats b (.readDouble in))
+        (aset ^doubles max-lats b (.readDouble in))
+        (aset ^doubles min-lons b (.readDouble in))
+        (aset ^doubles max-lons b (.readDouble in))
+        (aset ^ints min-dates b (.readInt in))
+        (aset ^ints max-dates b (.readInt in)))
+      (SpatialIndex. (str path) s-res n block-size min-zs max-zs
+                     min-lats max-lats min-lons max-lons min-dates max-dates))))
+
+(defn- read-block
+  "Returns the records in block `b` of `index` as `[zindex lat lon
+  date gadm2 iso prob]`, with `date` as an integer."
+  [index ^RandomAccessFile raf b]
+  (let [{:keys [n block-size min-zs]} index
+        nblocks (alength ^longs min-zs)
+        start (* b block-size)
+        count (min block-size (- n start))
+        bytes (byte-array (* count record-bytes))
+        iso (byte-array 3)]
+    (.seek raf (+ header-bytes (* nblocks block-entry-bytes) (* start record-bytes)))
+    (.readFully raf bytes)
+    (let [buf (ByteBuffer/wrap bytes)]
+      (vec (repeatedly count
+                       #(vector (.getLong buf) (.getDouble buf) (.getDouble buf)
+                                (.getInt buf) (.getInt buf)
+                                (do (.get buf iso)
+                                    (.trim (String. iso "US-ASCII")))
+                                (long (.get buf))))))))
+
+(defn- scan
+  "Returns `[lat lon iso gadm2 date prob]` for each record of `index`
+  in the blocks for which `block?` returns true that satisfies
+  `record?`."
+  [index block? record?]
+  (with-open [raf (RandomAccessFile. ^String (:path index) "r")]
+    (doall
+     (for [b (range (alength ^longs (:min-zs index)))
+           :when (block? b)
+           [_ lat lon date gadm2 iso prob :as record] (read-block index raf b)
+           :when (record? record)]
+       [lat lon iso gadm2 (int->date date) prob]))))
+
+(defn- date-range
+  "Returns the integer date range for the optional date strings
+  `start` and `end`, inclusive."
+  [start end]
+  [(if start (date->int start) Integer/MIN_VALUE)
+   (if end (date->int end) Integer/MAX_VALUE)])
+
+(defn bbox-query
+  "Returns the rows in `index` that fall within the supplied latitude
+  and longitude bounds (inclusive), optionally limited to dates from
+  `start` through `end`.
+
+  Example usage:
+    (bbox-query (open-index \"/tmp/forma.idx\") -1 100 1 102
+                \"2006-01-01\" \"2006-12-31\")"
+  [index lat-min lon-min lat-max lon-max & [start end]]
+  (let [[d0 d1] (date-range start end)
+        {:keys [^doubles min-lats ^doubles max-lats ^doubles min-lons
+                ^doubles max-lons ^ints min-dates ^ints max-dates]} index]
+    (scan index
+          (fn [b]
+            (and (<= lat-min (aget max-lats b)) (<= (aget min-lats b) lat-max)
+                 (<= lon-min (aget max-lons b)) (<= (aget min-lons b) lon-max)
+                 (<= d0 (aget max-dates b)) (<= (aget min-dates b) d1)))
+          (fn [[_ lat lon date]]
+            (and (<= lat-min lat lat-max)
+                 (<= lon-min lon lon-max)
+                 (<= d0 date d1))))))
+
+(defn point-query
+  "Returns the rows in `index` for the MODIS pixel containing `lat`
+  and `lon`, optionally limited to dates from `start` through `end`."
+  [index lat lon & [start end]]
+  (let [[d0 d1] (date-range start end)
+        z (pixel-zindex (:s-res index) lat lon)
+        {:keys [^longs min-zs ^longs max-zs ^ints min-dates ^ints max-dates]} index]
+    (scan index
+          (fn [b]
+            (and (<= (aget min-zs b) z (aget max-zs b))
+                 (<= d0 (aget max-dates b)) (<= (aget min-dates b) d1)))
+          (fn [[rz _ _ date]]
+            (and (== z rz) (<= d0 date d1))))))
@@ -38,6 +38,66 @@
     (map (comp float average (partial filter #(not (nil? %))))
                   (partition window 1 expanded-ts))))
 
+;; ### Cleaning Kernel
+;;
+;; `clean-probs` runs on every pixel of every output job. Rather than
+;; building intermediate sequences for each step, the kernel below
+;; makes one pass over the series, carrying the last good value, a
+;; window of the last three filled values and the running max.
+
+(defn- series->doubles
+  "Returns a double array of the supplied series, with `NA` replaced
+  by -9999.0."
+  ^doubles [ts]
+  (let [out (double-array (count ts))]
+    (loop [i 0, ts (seq ts)]
+      (when ts
+        (let [x (first ts)]
+          (aset out i (if (= 'NA x) -9999.0 (double x)))
+          (recur (inc i) (next ts)))))
+    out))
+
+(defn clean-probs!
+  "Cleans the probability series `ts` into `out` (see `clean-probs`)
+  and returns the index of the first cleaned value at or above
+  `thresh`, or -1 if no value reaches it (or `thresh` is nil)."
+  ^long [^doubles ts nodata ^ints out thresh]
+  (let [nodata (double nodata)
+        thresh (if thresh (double thresh) Double/POSITIVE_INFINITY)
+        n (alength ts)]
+    (loop [i 0, good 0.0, a 0.0, b 0.0, running Double/NEGATIVE_INFINITY, hit -1]
+      (if (< i n)
+        (let [x (aget ts i)
+              good (if (== x nodata) good x)
+              mean (case (int (min i 2))
+                     0 good
+                     1 (/ (+ b good) 2)
+                     2 (/ (+ (+ a b) good) 3))
+              running (max running (double (float mean)))
+              val (Math/round (* running 100.0))]
+          (aset out i (int val))
+          (recur (inc i) good b good running
+                 (if (and (neg? hit) (<= thresh val)) i hit)))
+        hit))))
+
+(defn clean-probs-array
+  "Returns the cleaned series of `clean-probs` as an int array."
+  ^ints [ts nodata]
+  (let [ts (series->doubles ts)
+        out (int-array (alength ts))]
+    (clean-probs! ts nodata out nil)
+    out))
+
+(defn clean-probs-first-hit
+  "Returns `[cleaned-series first-hit-idx]`, the output of
+  `clean-probs` along with the index of the first cleaned value at or
+  above `thresh` (nil if there isn't one), computed in one pass."
+  [ts nodata thresh]
+  (let [ts (series->doubles ts)
+        out (int-array (alength ts))
+        hit (clean-probs! ts nodata out thresh)]
+    [(vec out) (when-not (neg? hit) hit)]))
+
 (defn clean-probs
   "Accepts a timeseries of probabilities, and returns a nested vector
   'cleaned' time series.  Specifically, the cleaned timeseries Smooth
@@ -48,9 +108,19 @@
   expressed purpose is to clean the FORMA probability time series.
   That is, in some sense, FORMA is defined by the 3-length window.
 
+  `NA` values become -9999.0, and `nodata` values are replaced by the
+  closest good value to their left (0 if there is none) before
+  smoothing. The work is done by `clean-probs!`; `clean-probs-seq`
+  is the original, sequence-based definition.
+
   Example usage:
     (clean-probs [0.1 0.2 0.3 0.4 0.5]) => [[10 15 20 30 40]]"
   [ts nodata]
+  [(vec (clean-probs-array ts nodata))])
+
+(defn clean-probs-seq
+  "Sequence-based reference implementation of `clean-probs`."
+  [ts nodata]
   {:post [(= (count (flatten %)) (count ts))]}
   (let [no-NA-ts (u/replace-all 'NA -9999.0 ts)
         no-nodata-ts (u/replace-from-left nodata no-NA-ts :default 0 :all-types true)]
@@ -58,6 +128,75 @@
              (reductions max)
              (map #(round (* % 100)))))]))
 
+;; ### Threshold Crossings
+;;
+;; Output jobs ask when a cleaned series first reaches an alert
+;; threshold. These functions answer that in a single pass that stops
+;; at the crossing, for one threshold or for several at once.
+
+(def ^:private int-array-class (class (int-array 0)))
+(def ^:private double-array-class (class (double-array 0)))
+
+(defn first-crossing
+  "Returns the index of the first value in `series` (a vector, int
+  array or double array) at or above `thresh`, or -1 if there isn't
+  one."
+  ^long [^double thresh series]
+  (condp instance? series
+    int-array-class (let [^ints a series
+                          n (alength a)]
+                      (loop [i 0]
+                        (cond (>= i n) -1
+                              (<= thresh (aget a i)) i
+                              :else (recur (inc i)))))
+    double-array-class (let [^doubles a series
+                             n (alength a)]
+                         (loop [i 0]
+                           (cond (>= i n) -1
+                                 (<= thresh (aget a i)) i
+                                 :else (recur (inc i)))))
+    (let [n (count series)]
+      (loop [i 0]
+        (cond (>= i n) -1
+              (<= thresh (nth series i)) i
+              :else (recur (inc i)))))))
+
+(defn crossing
+  "Returns `[idx value latest?]` for the first value in `series` at or
+  above `thresh`: its index, the value itself and whether it is the
+  last value in the series. Returns nil if no value reaches `thresh`.
+
+  Example usage:
+    (crossing 50 [10 55 80]) => [1 55 false]"
+  [thresh series]
+  (let [idx (first-crossing thresh series)]
+    (when-not (neg? idx)
+      [idx (nth series idx) (== idx (dec (count series)))])))
+
+(defn first-crossings
+  "Returns a vector of the `first-crossing` index of `series` for each
+  threshold in `threshs` (nil where there is none), in a single pass
+  that stops once every threshold has been reached.
+
+  Example usage:
+    (first-crossings [90 50 75] [10 55 80 85 95]) => [4 1 2]"
+  [threshs series]
+  (let [threshs (vec threshs)
+        order (int-array (sort-by threshs (range (count threshs))))
+        m (alength order)
+        n (count series)
+        out (int-array m -1)]
+    (loop [i 0, k 0]
+      (when (and (< i n) (< k m))
+        (let [x (nth series i)
+              k (long (loop [k k]
+                        (if (and (< k m) (<= (threshs (aget order k)) x))
+                          (do (aset out (aget order k) i)
+                              (recur (inc k)))
+                          k)))]
+          (recur (inc i) k))))
+    (mapv #(when-not (neg? %) %) out)))
+
 (defn error-map
   "returns a vector indicating one of four possiblities: false
   positive, false negative, true positive, true negative.  This is
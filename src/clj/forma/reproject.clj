@@ -296,8 +296,64 @@ line. For example:
                 [mag-x mag-y])]
     [tile-h tile-v sample line]))
 
-;; See [this gist](https://gist.github.com/939337) for an example of a
-;; way to attack this pattern with a macro.
+;; ### Primitive Reprojection
+;;
+;; The vector functions above document each step of the
+;; reprojection, but thread every point through seqs of boxed
+;; numbers. The following helpers perform the same arithmetic, in the
+;; same order, on primitive longs and doubles. Both the scalar
+;; `latlon->modis` and `modis->latlon` (used per tuple by the Cascalog
+;; queries) and their batch counterparts below delegate to them, so
+;; every caller gets identical results.
+
+(def ^:private res-params
+  "Returns `[edge-pixels edge-length scale]` for the supplied MODIS
+  resolution: the number of pixels along a tile's edge, the length of
+  a pixel's edge in meters, and the number of pixels per meter."
+  (memoize
+   (fn [res]
+     (let [edge-length (double (pixel-length res))]
+       [(long (pixels-at-res res)) edge-length (/ edge-length)]))))
+
+(defn- pixel-x
+  "Returns the global pixel column reached by the supplied latitude
+  and longitude (in radians), at `scale` pixels per meter."
+  ^long [^double lat ^double lon ^double scale]
+  (long (int (* (- (* (* (Math/cos lat) lon) (double rho)) (double min-x))
+                scale))))
+
+(defn- pixel-y
+  "Returns the global pixel row reached by the supplied latitude (in
+  radians), at `scale` pixels per meter."
+  ^long [^double lat ^double scale]
+  (long (int (* (- (double max-y) (* lat (double rho))) scale))))
+
+(defn- pixel-offset
+  "Returns the position of the global pixel index `px` within its
+  tile."
+  ^long [^long px ^long edge-pixels]
+  (let [px-rem (rem px edge-pixels)]
+    (if (neg? px-rem) (+ px-rem edge-pixels) px-rem)))
+
+(defn- pixel-mag
+  "Returns the distance in meters from the grid's origin to the
+  centroid of pixel `px` of tile `tile`."
+  ^double [^long tile ^long px ^long edge-pixels ^double edge-length]
+  (+ (* (+ px (* tile edge-pixels)) edge-length)
+     (/ edge-length 2)))
+
+(defn- mag-lat
+  "Returns the latitude (in radians) reached after traveling `mag-y`
+  meters down from the grid's origin."
+  ^double [^double mag-y]
+  (/ (- (double max-y) mag-y) (double rho)))
+
+(defn- mag-lon
+  "Returns the longitude (in radians) reached after traveling `mag-x`
+  meters right from the grid's origin, at latitude `lat` (in
+  radians)."
+  ^double [^double lat ^double mag-x]
+  (/ (+ (double min-x) mag-x) (* (double rho) (Math/cos lat))))
 
 (defn modis->latlon
   "Converts the supplied MODIS coordinates into `[lat, lon]` based on
@@ -306,11 +362,12 @@ line. For example:
 Example usage:
 
     (modis->latlon \"1000\" 8 6 12 12)
-    ;=> (29.89583333333333 -115.22901262147285)"
+    ;=> [29.89583333333333 -115.22901262147285]"
   [res mod-h mod-v sample line]
-  (->> (modis->global-mags res mod-h mod-v sample line)
-       (apply global-mags->sinu-xy)
-       (apply sinu-xy->latlon)))
+  (let [[edge-pixels edge-length] (res-params res)
+        lat (mag-lat (pixel-mag mod-v line edge-pixels edge-length))
+        lon (mag-lon lat (pixel-mag mod-h sample edge-pixels edge-length))]
+    [(Math/toDegrees lat) (Math/toDegrees lon)]))
 
 (defn latlon->modis
   "Converts the supplied latitude and longitude into MODIS pixel
@@ -321,9 +378,84 @@ Example usage:
     (latlon->modis \"1000\" 29.89583 -115.2290)
     ;=> [8 6 12 12]"
   [modis-res lat lon]
-  (->> (latlon->sinu-xy lat lon)
-       (apply sinu-xy->global-mags)
-       (apply global-mags->modis modis-res)))
+  {:pre [(valid-latlon? lat lon)]}
+  (let [[edge-pixels _ scale] (res-params modis-res)
+        edge-pixels (long edge-pixels)
+        lat (Math/toRadians lat)
+        px (pixel-x lat (Math/toRadians lon) scale)
+        py (pixel-y lat scale)]
+    [(quot px edge-pixels)
+     (quot py edge-pixels)
+     (pixel-offset px edge-pixels)
+     (pixel-offset py edge-pixels)]))
+
+;; ### Batch Reprojection
+;;
+;; The following functions reproject primitive arrays of points
+;; through the same helpers, so that reprojecting a large batch
+;; allocates only the output arrays. The static samplers in
+;; `forma.source.static` and the spatial index in
+;; `forma.postprocess.index` reproject whole tiles and blocks this
+;; way.
+
+(defn latlons->modis
+  "Batch version of `latlon->modis`. Accepts arrays of latitudes and
+  longitudes (in degrees) and returns a vector of four int arrays
+  holding the MODIS h, v, sample and line of each point at the
+  supplied resolution. Unlike `latlon->modis`, the coordinates are not
+  validated.
+
+  Example usage:
+    (map vec (latlons->modis \"1000\"
+                             (double-array [29.89583])
+                             (double-array [-115.2290])))
+    ;=> ([8] [6] [12] [12])"
+  [res ^doubles lats ^doubles lons]
+  {:pre [(= (alength lats) (alength lons))]}
+  (let [n (alength lats)
+        [edge-pixels _ scale] (res-params res)
+        edge-pixels (long edge-pixels)
+        scale (double scale)
+        hs (int-array n)
+        vs (int-array n)
+        samples (int-array n)
+        lines (int-array n)]
+    (dotimes [i n]
+      (let [lat (Math/toRadians (aget lats i))
+            px (pixel-x lat (Math/toRadians (aget lons i)) scale)
+            py (pixel-y lat scale)]
+        (aset hs i (int (quot px edge-pixels)))
+        (aset vs i (int (quot py edge-pixels)))
+        (aset samples i (int (pixel-offset px edge-pixels)))
+        (aset lines i (int (pixel-offset py edge-pixels)))))
+    [hs vs samples lines]))
+
+(defn modis->latlons
+  "Batch version of `modis->latlon`. Accepts int arrays of MODIS h, v,
+  sample and line coordinates at the supplied resolution and returns a
+  vector of two double arrays holding the latitude and longitude (in
+  degrees) of each pixel's centroid.
+
+  Example usage:
+    (map vec (modis->latlons \"1000\" (int-array [8]) (int-array [6])
+                             (int-array [12]) (int-array [12])))
+    ;=> ([29.89583333333333] [-115.22901262147285])"
+  [res ^ints hs ^ints vs ^ints samples ^ints lines]
+  {:pre [(apply = (map count [hs vs samples lines]))]}
+  (let [n (alength hs)
+        [edge-pixels edge-length] (res-params res)
+        edge-pixels (long edge-pixels)
+        edge-length (double edge-length)
+        lats (double-array n)
+        lons (double-array n)]
+    (dotimes [i n]
+      (let [lat (mag-lat (pixel-mag (aget vs i) (aget lines i)
+                                    edge-pixels edge-length))
+            lon (mag-lon lat (pixel-mag (aget hs i) (aget samples i)
+                                        edge-pixels edge-length))]
+        (aset lats i (Math/toDegrees lat))
+        (aset lons i (Math/toDegrees lon))))
+    [lats lons]))
 
 ;; ### WGS84 -> MODIS Index Mapping
 ;;
@@ -2,7 +2,8 @@
   "A set of functions to structure other queries."
   (:require [forma.date-time :as date]
             [forma.utils :as u]
-            [forma.thrift :as thrift]))
+            [forma.thrift :as thrift])
+  (:import [forma.schema FireValue FormaValue]))
 
 (defn create-timeseries
   "Create a TimeSeries from a period start index and a collection of timeseries
@@ -112,36 +113,133 @@
   Returns a new neighbor value object representing the merged values."
   [nodata neighbor-val forma-val]
   {:pre [(instance? forma.schema.NeighborValue neighbor-val)]}
-  (cond
-   (and (thrift/obj-contains-nodata? nodata neighbor-val)
-        (thrift/obj-contains-nodata? nodata forma-val))
+  (let [neighbor-nodata? (thrift/obj-contains-nodata? nodata neighbor-val)
+        forma-nodata? (thrift/obj-contains-nodata? nodata forma-val)]
+    (cond
+     (and neighbor-nodata? forma-nodata?)
               empty-neighbor-val
-   (thrift/obj-contains-nodata? nodata neighbor-val)
+     neighbor-nodata?
               (neighbor-value forma-val)
-   (thrift/obj-contains-nodata? nodata forma-val)
+     forma-nodata?
               neighbor-val
-   :else (let [[fire short-val long-val t-stat break] (thrift/unpack forma-val)
-               [n-fire ncount avg-short min-short avg-long
-                min-long avg-stat min-stat avg-break max-break] (thrift/unpack neighbor-val)]
-           (thrift/NeighborValue* (add-fires n-fire fire)
-                                  (inc ncount)
-                                  (u/weighted-mean avg-short ncount short-val 1)
-                                  (min min-short short-val)
-                                  (u/weighted-mean avg-long ncount long-val 1)
-                                  (min min-long long-val)
-                                  (u/weighted-mean avg-stat ncount t-stat 1)
-                                  (min min-stat t-stat)
-                                  (u/weighted-mean avg-break ncount break 1)
-                                  (max max-break break)))))
+     :else (let [[fire short-val long-val t-stat break] (thrift/unpack forma-val)
+                 [n-fire ncount avg-short min-short avg-long
+                  min-long avg-stat min-stat avg-break max-break] (thrift/unpack neighbor-val)]
+             (thrift/NeighborValue* (add-fires n-fire fire)
+                                    (inc ncount)
+                                    (u/weighted-mean avg-short ncount short-val 1)
+                                    (min min-short short-val)
+                                    (u/weighted-mean avg-long ncount long-val 1)
+                                    (min min-long long-val)
+                                    (u/weighted-mean avg-stat ncount t-stat 1)
+                                    (min min-stat t-stat)
+                                    (u/weighted-mean avg-break ncount break 1)
+                                    (max max-break break))))))
+
+;; ### Neighbor Accumulation
+;;
+;; `combine-neighbors` folds `merge-neighbors` over every neighbor of
+;; every pixel, allocating a new NeighborValue and FireValue each
+;; step. The accumulator below carries the same running values in a
+;; single double array and performs the same arithmetic, in the same
+;; order, so that only the final NeighborValue is built:
+;;
+;;     0      neighbor count
+;;     1-4    fire: temp330, conf50, bothPreds, count
+;;     5-12   avg-short, min-short, avg-long, min-long,
+;;            avg-stat, min-stat, avg-break, max-break
+
+(defn neighbor-accumulator
+  "Returns an empty neighbor accumulator."
+  []
+  (double-array 13))
+
+(defn- reset-neighbors!
+  "Resets the accumulator to `empty-neighbor-val`."
+  [^doubles acc]
+  (java.util.Arrays/fill acc 0.0)
+  acc)
+
+(defn init-neighbors!
+  "Resets the accumulator to `(neighbor-value forma-val)`."
+  [^doubles acc ^FormaValue forma-val]
+  (let [^FireValue fire (.getFireValue forma-val)]
+    (aset acc 0 1.0)
+    (aset acc 1 (double (.getTemp330 fire)))
+    (aset acc 2 (double (.getConf50 fire)))
+    (aset acc 3 (double (.getBothPreds fire)))
+    (aset acc 4 (double (.getCount fire)))
+    (dotimes [i 2]
+      (aset acc (+ 5 i) (.getShortDrop forma-val))
+      (aset acc (+ 7 i) (.getLongDrop forma-val))
+      (aset acc (+ 9 i) (.getTStat forma-val))
+      (aset acc (+ 11 i) (.getParamBreak forma-val)))
+    acc))
+
+(defn- accumulated-nodata?
+  [^doubles acc nodata]
+  (let [nodata (double nodata)]
+    (loop [i 5]
+      (cond (> i 12) false
+            (== nodata (aget acc i)) true
+            :else (recur (inc i))))))
+
+(defn accumulate-neighbor!
+  "Folds `forma-val` into the accumulator, with the semantics of
+  `merge-neighbors`."
+  [^doubles acc nodata ^FormaValue forma-val]
+  (let [neighbor-nodata? (accumulated-nodata? acc nodata)
+        forma-nodata? (thrift/obj-contains-nodata? nodata forma-val)]
+    (cond
+     (and neighbor-nodata? forma-nodata?) (reset-neighbors! acc)
+     neighbor-nodata? (init-neighbors! acc forma-val)
+     forma-nodata? acc
+     :else
+     (let [^FireValue fire (.getFireValue forma-val)
+           n (aget acc 0)
+           n+1 (+ n 1.0)
+           short-val (.getShortDrop forma-val)
+           long-val (.getLongDrop forma-val)
+           t-stat (.getTStat forma-val)
+           break (.getParamBreak forma-val)]
+       (aset acc 1 (+ (aget acc 1) (.getTemp330 fire)))
+       (aset acc 2 (+ (aget acc 2) (.getConf50 fire)))
+       (aset acc 3 (+ (aget acc 3) (.getBothPreds fire)))
+       (aset acc 4 (+ (aget acc 4) (.getCount fire)))
+       ;; running means, as in `merge-neighbors`, and extremes
+       (aset acc 5 (/ (+ (* (aget acc 5) n) short-val) n+1))
+       (aset acc 6 (Math/min (aget acc 6) short-val))
+       (aset acc 7 (/ (+ (* (aget acc 7) n) long-val) n+1))
+       (aset acc 8 (Math/min (aget acc 8) long-val))
+       (aset acc 9 (/ (+ (* (aget acc 9) n) t-stat) n+1))
+       (aset acc 10 (Math/min (aget acc 10) t-stat))
+       (aset acc 11 (/ (+ (* (aget acc 11) n) break) n+1))
+       (aset acc 12 (Math/max (aget acc 12) break))
+       (aset acc 0 n+1)
+       acc))))
+
+(defn accumulator->neighbor-value
+  "Returns the NeighborValue held in the accumulator."
+  [^doubles acc]
+  (let [fire (thrift/FireValue* (long (aget acc 1)) (long (aget acc 2))
+                                (long (aget acc 3)) (long (aget acc 4)))]
+    (apply neighbor-value fire (long (aget acc 0))
+           (map #(aget acc %) (range 5 13)))))
 
 (defn combine-neighbors
   "Returns a new forma neighbor value generated by merging together
    each entry in the supplied sequence of forma values.  See tests for
-   example usage."
-  [nodata [x & more]]
-  (if x
-    (reduce (partial merge-neighbors nodata) (neighbor-value x) more)
-    empty-neighbor-val))
+   example usage. The optional accumulator (see
+   `neighbor-accumulator`) may be reused across calls."
+  ([nodata forma-vals]
+     (combine-neighbors nodata forma-vals (neighbor-accumulator)))
+  ([nodata [x & more] acc]
+     (if x
+       (do (init-neighbors! acc x)
+           (doseq [forma-val more]
+             (accumulate-neighbor! acc nodata forma-val))
+           (accumulator->neighbor-value acc))
+       empty-neighbor-val)))
 
 (defn forma-value
   "Returns a `FormaValue`, given a `FireValue` (or `nil`), short stat,
@@ -230,6 +230,221 @@
         (fire-pred ?s-lat ?s-lon ?s-kelvin ?s-conf :> ?dataset ?t-res ?lat ?lon ?tuple)
         (keep-fire? s-res tile-set ?lat ?lon))))
 
+;; ## Fast Parsing
+;;
+;; The FIRMS archives run to hundreds of millions of lines. The
+;; sources above split every line into a vector of strings with a
+;; regex, box each number through `utils/strings->floats` and
+;; reformat each datestring via clj-time. The functions below scan each
+;; line in place instead: field boundaries are located with a single
+;; pass over the characters, numbers are accumulated digit by digit and
+;; dates are read straight into their integer pieces.
+
+(def fire-formats
+  "Layout of each supported fire file format: the field separator (or
+  `nil` for runs of whitespace), the expected number of fields and the
+  index of each field that FORMA uses."
+  {:monthly {:sep nil :fields 10 :date 0 :lat 3 :lon 4 :kelvin 5 :conf 9}
+   :daily   {:sep \, :fields 12 :date 5 :lat 0 :lon 1 :kelvin 2 :conf 8}})
+
+(def ^:private ^:const max-fields 32)
+
+(defn field-offsets
+  "Returns an int array holding the index of the first character of
+  each field in `line`. Fields are separated by the character `sep`,
+  or by runs of whitespace if `sep` is nil. Returns nil for lines with
+  more than 32 fields.
+
+  Example usage:
+    (vec (field-offsets \"1,22,333\" \\,)) => [0 2 5]"
+  [^String line sep]
+  (let [len (.length line)
+        offsets (int-array max-fields)
+        n (if sep
+            (let [sep (int (char sep))]
+              (loop [i 0, n 1]
+                (cond (>= i len) n
+                      (not (== sep (int (.charAt line i)))) (recur (inc i) n)
+                      (< n max-fields) (do (aset offsets n (int (inc i)))
+                                           (recur (inc i) (inc n)))
+                      :else -1)))
+            (loop [i 0, n 0, in-field? false]
+              (cond (>= i len) n
+                    (Character/isWhitespace (.charAt line i)) (recur (inc i) n false)
+                    in-field? (recur (inc i) n true)
+                    (< n max-fields) (do (aset offsets n (int i))
+                                         (recur (inc i) (inc n) true))
+                    :else -1)))]
+    (when-not (neg? n)
+      (java.util.Arrays/copyOf offsets (int n)))))
+
+(def ^:private powers-of-ten
+  (double-array (for [i (range 19)] (Math/pow 10 i))))
+
+(defn parse-decimal
+  "Parses the decimal number held in `line` between `start` and `end`,
+  without allocating an intermediate string. Leading spaces are
+  skipped; anything but whitespace or a comma after the number makes
+  the field invalid, as do numbers with more than one decimal point
+  or more than 18 digits. Returns `Double/NaN` for invalid fields.
+
+  Example usage:
+    (parse-decimal \"a,-16.701,b\" 2 10) => -16.701"
+  [^String line start end]
+  (let [end (int end)]
+    (loop [i (int start), mantissa 0, scale -1, negative? false, digits 0]
+      (let [c (if (< i end) (int (.charAt line i)) (int -1))
+            d (- c (int \0))]
+        (cond (and (>= d 0) (<= d 9) (< digits 18))
+              (recur (inc i) (+ (* 10 mantissa) d)
+                     (if (neg? scale) scale (inc scale)) negative? (inc digits))
+
+              (and (== c (int \.)) (neg? scale))
+              (recur (inc i) mantissa 0 negative? digits)
+
+              (and (== c (int \-)) (zero? digits) (neg? scale) (not negative?))
+              (recur (inc i) mantissa scale true digits)
+
+              (and (== c (int \space)) (zero? digits) (neg? scale) (not negative?))
+              (recur (inc i) mantissa scale negative? digits)
+
+              (or (zero? digits)
+                  (loop [j i]
+                    (cond (>= j end) false
+                          (let [c (.charAt line j)]
+                            (or (== (int c) (int \,))
+                                (Character/isWhitespace c))) (recur (inc j))
+                          :else true)))
+              Double/NaN
+
+              :else
+              (let [x (/ (double mantissa)
+                         (aget ^doubles powers-of-ten (max 0 scale)))]
+                (if negative? (- x) x)))))))
+
+(defn- parse-digits
+  "Returns the integer held in the `n` ASCII digits of `line` beginning
+  at `start`, or -1 if any of them isn't a digit."
+  [^String line start n]
+  (loop [i (int start), left (int n), acc 0]
+    (if (zero? left)
+      acc
+      (let [d (- (int (.charAt line i)) 48)]
+        (if (and (>= d 0) (<= d 9))
+          (recur (inc i) (dec left) (+ (* 10 acc) d))
+          -1)))))
+
+(defn parse-fire-date
+  "Returns the `[year month day]` of the date held in `line` between
+  `start` and `end`. Daily (`MM/DD/YYYY`), monthly (`YYYYMMDD`) and
+  standard (`YYYY-MM-DD`) datestrings are all accepted; returns nil
+  for anything else, such as a header row.
+
+  Example usage:
+    (parse-fire-date \"03/15/2011\" 0 10) => [2011 3 15]"
+  [^String line start end]
+  (let [len (- end start)
+        at #(.charAt line (+ start %))
+        [y m d] (cond (and (>= len 10) (= \/ (at 2)) (= \/ (at 5)))
+                      [(parse-digits line (+ start 6) 4)
+                       (parse-digits line start 2)
+                       (parse-digits line (+ start 3) 2)]
+
+                      (and (>= len 10) (= \- (at 4)) (= \- (at 7)))
+                      [(parse-digits line start 4)
+                       (parse-digits line (+ start 5) 2)
+                       (parse-digits line (+ start 8) 2)]
+
+                      (>= len 8)
+                      [(parse-digits line start 4)
+                       (parse-digits line (+ start 4) 2)
+                       (parse-digits line (+ start 6) 2)])]
+    (when (and y (pos? y) (<= 1 m 12) (<= 1 d 31))
+      [y m d])))
+
+(defn date-parts->datestring
+  "Returns the supplied year, month and day formatted as YYYY-MM-DD.
+
+  Example usage:
+    (date-parts->datestring 2011 3 5) => \"2011-03-05\""
+  [y m d]
+  (let [sb (StringBuilder. 10)
+        pad (fn [x]
+              (when (< x 10) (.append sb \0))
+              (.append sb (int x)))]
+    (.append sb (int y))
+    (.append sb \-)
+    (pad m)
+    (.append sb \-)
+    (pad d)
+    (.toString sb)))
+
+(defn parse-fire-line
+  "Returns `[date lat lon kelvin conf]` for a line of a fire file in
+  the supplied format (a key of `fire-formats`), with the date
+  formatted as YYYY-MM-DD and the rest as doubles. Returns nil for
+  header rows and lines with the wrong number of fields or malformed
+  numbers. The date stays a string, as the `DataChunk` date field is
+  one; `date/ymd->period` reads its period without clj-time.
+
+  Example usage:
+    (parse-fire-line :daily
+      \"-4.214,152.190,319.9,1.6,1.2,03/15/2011,0035,T,0,5.0,301.3,27.8\")
+    ;=> [\"2011-03-15\" -4.214 152.19 319.9 0.0]"
+  [fmt ^String line]
+  (let [{:keys [sep fields date lat lon kelvin conf]} (fire-formats fmt)
+        ^ints offsets (field-offsets line sep)]
+    (when (and offsets (= fields (alength offsets)))
+      (let [field-end (fn [k]
+                        (if (< (inc k) fields)
+                          (aget offsets (inc k))
+                          (.length line)))
+            parse (fn [k]
+                    (parse-decimal line (aget offsets k) (field-end k)))
+            lat (parse lat), lon (parse lon)
+            kelvin (parse kelvin), conf (parse conf)
+            [y m d] (parse-fire-date line (aget offsets date) (field-end date))]
+        (when (and y (not (or (Double/isNaN lat) (Double/isNaN lon)
+                              (Double/isNaN kelvin) (Double/isNaN conf))))
+          [(date-parts->datestring y m d) lat lon kelvin conf])))))
+
+(defmapcatop [parse-fires [fmt]]
+  "Parses a textline from a fire file in the supplied format into a
+  `<date, lat, lon, kelvin, conf>` tuple, dropping unparseable lines."
+  [line]
+  (if-let [fire (parse-fire-line fmt line)]
+    [fire]
+    []))
+
+(defn fast-fire-source
+  "Returns a Cascalog query that creates fire tuples from textlines in
+  the supplied format (`:monthly` or `:daily`), producing the same
+  fields as `fire-source-monthly` and `fire-source-daily`. When a
+  `tile-set` and `s-res` are supplied, fires are screened with
+  `keep-fire?`, as in `fire-source`.
+
+  Source:
+    src - An hfs-textline of fires
+
+  Output variables:
+    ?dataset - The dataset name (fires).
+    ?date - The fire date formatted as YYYY-MM-DD.
+    ?t-res - The fire temporal resolution (1).
+    ?lat - The fire latitude as a double.
+    ?lon - The fire longitude as a double.
+    ?tuple - The FireTuple Thrift object representing the fire."
+  ([fmt src]
+     (<- [?dataset ?date ?t-res ?lat ?lon ?tuple]
+         (src ?line)
+         (parse-fires [fmt] ?line :> ?date ?lat ?lon ?kelvin ?conf)
+         (p/add-fields "fire" "01" :> ?dataset ?t-res)
+         (fire-characteristics ?conf ?kelvin :> ?tuple)))
+  ([fmt src tile-set s-res]
+     (let [fire-src (fast-fire-source fmt src)]
+       (<- [?dataset ?date ?t-res ?lat ?lon ?tuple]
+           (fire-src ?dataset ?date ?t-res ?lat ?lon ?tuple)
+           (keep-fire? s-res tile-set ?lat ?lon)))))
+
 (defn reproject-fires
   "Returns a Cascalog query that creates DataChunk Thrift objects for fires."
   [m-res src]
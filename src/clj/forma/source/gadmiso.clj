@@ -1,6 +1,8 @@
 (ns forma.source.gadmiso
   (:require [clojure.java.io :as io]
-            [forma.utils :as utils :only (unzip ls)]))
+            [forma.utils :as utils :only (unzip ls)])
+  (:import [java.io DataInputStream DataOutputStream]
+           [java.nio ByteBuffer]))
 
 (def text-map
   "Returns a sequence of vectorized strings (e.g., [\"AFG,1\"])
@@ -18,16 +20,15 @@
   (let [[iso gadm-str] (.split x ",")]
     {(read-string gadm-str) iso}))
 
-(def gadm-iso-map
-  "Hash-map that associates all GADMs and ISO codes."
-  (let [small-maps (map parse-line text-map)]
-    (apply merge small-maps)))
+(def ^:private gadm-iso-map*
+  (delay (apply merge (map parse-line text-map))))
 
-(defn gadm->iso
-  "Accepts an integer GADM ID and returns the associated ISO3 code as
-  a string; wraps gadm-iso map for use in a cascalog query"
+(defn gadm-iso-map
+  "Returns the ISO code for the supplied GADM ID from a hash-map that
+  associates all GADMs and ISO codes, built from `admin-map.csv` on
+  first use."
   [gadm]
-  (gadm-iso-map gadm))
+  (@gadm-iso-map* gadm))
 
 (defn zip->decomp-dir
   "Decompress gadm2.zip and return the output directory."
@@ -121,14 +122,98 @@
   {:iso "UNK"
    :ids {:id0 -9999, :id1 -9999, :id2 -9999, :id3 -9999, :id4 -9999, :id5 -9999}})
 
-(def gadm2-map
-  (->> (zip->decomp-dir)
-       (csv-dir->line-seq)
-       (rest)
-       (map line->gadm2-map)
-       (apply merge)
-       (#(assoc % -9999 neg9999))))
+(def ^:private gadm2-map*
+  (delay (->> (zip->decomp-dir)
+              (csv-dir->line-seq)
+              (rest)
+              (map line->gadm2-map)
+              (apply merge)
+              (#(assoc % -9999 neg9999)))))
+
+(defn gadm2-map
+  "Returns the ISO code and id fields for the supplied object id, from
+  `gadm2.zip`, which is decompressed and parsed on first use."
+  [object-id]
+  (@gadm2-map* object-id))
+
+;; ### Packed ISO Tables
+;;
+;; `gadm->iso` and `gadm2->iso` run once per pixel in the output
+;; jobs. Rather than building the maps above every time this
+;; namespace loads, we ship each lookup as a small binary resource: a
+;; table of distinct ISO codes followed by a dense array, indexed by
+;; ID, holding each ID's position in that table (-1 for unknown
+;; IDs). Tables are regenerated from the CSVs with
+;; `build-iso-tables!`.
+
+(defrecord IsoTable [^long offset ^shorts ordinals ^objects isos])
+
+(defn write-iso-table!
+  "Writes the supplied map of ID to ISO code to `path` as the count of
+  distinct ISO codes, the codes themselves, the smallest ID, the
+  number of IDs spanned and an ordinal for each ID in that span."
+  [path id->iso]
+  (let [isos (vec (sort (distinct (vals id->iso))))
+        ordinal (zipmap isos (range))
+        offset (apply min (keys id->iso))
+        length (inc (- (apply max (keys id->iso)) offset))]
+    (with-open [out (DataOutputStream. (io/output-stream path))]
+      (.writeInt out (count isos))
+      (doseq [^String iso isos]
+        (.writeUTF out iso))
+      (.writeInt out offset)
+      (.writeInt out length)
+      (doseq [id (range offset (+ offset length))]
+        (.writeShort out (int (ordinal (id->iso id) -1)))))))
+
+(defn read-iso-table
+  "Reads an `IsoTable` written by `write-iso-table!` from the supplied
+  URL or path."
+  [src]
+  (with-open [in (DataInputStream. (io/input-stream src))]
+    (let [isos (object-array (for [_ (range (.readInt in))]
+                               (.intern (.readUTF in))))
+          offset (.readInt in)
+          bytes (byte-array (* 2 (.readInt in)))
+          ordinals (short-array (quot (alength bytes) 2))]
+      (.readFully in bytes)
+      (.get (.asShortBuffer (ByteBuffer/wrap bytes)) ordinals)
+      (IsoTable. offset ordinals isos))))
+
+(defn table->iso
+  "Returns the ISO code for `id` in the supplied `IsoTable`, or nil if
+  the ID is unknown."
+  [^IsoTable table id]
+  (when id
+    (let [^shorts ordinals (.ordinals table)
+          i (- (long id) (.offset table))]
+      (when (and (< -1 i) (< i (alength ordinals)))
+        (let [ordinal (aget ordinals i)]
+          (when-not (neg? ordinal)
+            (aget ^objects (.isos table) ordinal)))))))
+
+(defn build-iso-tables!
+  "Regenerates the packed tables for `gadm->iso` and `gadm2->iso` in
+  `resource-dir` from `admin-map.csv` and `gadm2.zip`."
+  [resource-dir]
+  (write-iso-table! (str resource-dir "/gadm-iso.bin")
+                    (apply merge (map parse-line text-map)))
+  (write-iso-table! (str resource-dir "/gadm2-iso.bin")
+                    (into {} (for [[id {:keys [iso]}] @gadm2-map*]
+                               [id iso]))))
+
+(def gadm-iso-table
+  (read-iso-table (io/resource "gadm-iso.bin")))
+
+(def gadm2-iso-table
+  (read-iso-table (io/resource "gadm2-iso.bin")))
+
+(defn gadm->iso
+  "Accepts an integer GADM ID and returns the associated ISO3 code as
+  a string; wraps `gadm-iso-table` for use in a cascalog query"
+  [gadm]
+  (table->iso gadm-iso-table gadm))
 
 (defn gadm2->iso
   [object-id]
-  (:iso (gadm2-map object-id)))
+  (table->iso gadm2-iso-table object-id))
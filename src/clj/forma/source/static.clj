@@ -6,8 +6,15 @@
             [forma.schema :as schema]
             [forma.thrift :as thrift]
             [forma.hadoop.io :as io]
+            [forma.utils :as u]
             [clojure.java.io :as java.io]
-            [forma.hadoop.predicate :as p]))
+            [forma.hadoop.predicate :as p])
+  (:import [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs FileSystem FSDataInputStream Path]
+           [java.io BufferedOutputStream BufferedReader InputStreamReader
+            OutputStream]
+           [java.nio ByteBuffer ByteOrder]
+           [java.util Iterator StringTokenizer]))
 
 ;; ### Preprocessing
 ;;
@@ -97,6 +104,416 @@
         (+ 5 ?mv :> ?mod-v)
         (p/add-fields dataset m-res "00" nil :> ?dataset ?m-res ?t-res !date))))
 
+;; ### Raster-Native Sampling
+;;
+;; The queries above break every line of an ASCII grid into
+;; `[row col val]` tuples and join them against every MODIS pixel of
+;; the requested tiles. The functions below sample a grid directly
+;; instead: each map task reads the window of the grid that covers a
+;; tile once, then fills whole chunks by index arithmetic, using the
+;; same projection math as `r/wgs84-indexer` and `r/modis-indexer`.
+;; Reading a window out of an `AsciiGrid` scans the text from its
+;; first row, so the samplers only accept binary rasters (see
+;; `ascii->raster`); `AsciiGrid` serves the conversion and tests.
+
+(defprotocol IRaster
+  (read-window [raster row-min row-max col-min col-max]
+    "Returns a window map with `:row0`, `:col0`, `:height`, `:width`
+    and a row-major int array of values under `:data`, covering the
+    supplied inclusive row and column ranges clipped to the extent of
+    the raster."))
+
+(defn- parse-row!
+  "Parses the values in columns `col-min` through `col-max` of a row
+  of whitespace-separated values into `data`, starting at
+  `offset`. Values are truncated to ints, as `thrift/int-struct`
+  would. Returns the number of values parsed."
+  [^StringTokenizer tokens ^ints data offset col-min col-max]
+  (loop [col 0, n 0]
+    (if (or (> col col-max) (not (.hasMoreTokens tokens)))
+      n
+      (let [token (.nextToken tokens)]
+        (if (< col col-min)
+          (recur (inc col) n)
+          (do (aset data (+ offset n) (int (Double/parseDouble token)))
+              (recur (inc col) (inc n))))))))
+
+;; Grids may live on any Hadoop filesystem.
+
+(defn- path-fs
+  "Returns the Hadoop `Path` and `FileSystem` for the supplied path."
+  [path]
+  (let [path (Path. (str path))]
+    [path (.getFileSystem path (Configuration.))]))
+
+(defn- grid-rows
+  "Returns a lazy sequence of `[row tokens]` pairs for the lines of an
+  ASCII grid in the form produced by `index-textfile`, where `tokens`
+  is a `StringTokenizer` positioned just past the row index. Header
+  lines, which begin with a letter, are skipped."
+  [^BufferedReader rdr]
+  (for [^String line (line-seq rdr)
+        :let [tokens (StringTokenizer. line)]
+        :when (and (.hasMoreTokens tokens)
+                   (not (Character/isLetter (.charAt line 0))))]
+    [(Long/parseLong (.nextToken tokens)) tokens]))
+
+(defn- grid-reader
+  ^BufferedReader [path]
+  (let [[path fs] (path-fs path)]
+    (BufferedReader. (InputStreamReader. (.open ^FileSystem fs path)))))
+
+(defrecord AsciiGrid [path]
+  IRaster
+  (read-window [_ row-min row-max col-min col-max]
+    (let [cols (inc (- col-max col-min))
+          rows (with-open [rdr (grid-reader path)]
+                 (doall
+                  (for [[row tokens] (take-while #(<= (first %) row-max)
+                                                 (grid-rows rdr))
+                        :when (>= row row-min)]
+                    (let [data (int-array cols)]
+                      [row data (parse-row! tokens data 0 col-min col-max)]))))
+          height (count rows)
+          width (if (zero? height) 0 (apply min (map last rows)))
+          data (int-array (* height width))]
+      (doseq [[i [_ row _]] (map-indexed vector rows)]
+        (System/arraycopy row 0 data (* i width) width))
+      {:row0 (if (zero? height) row-min (ffirst rows)) :col0 col-min
+       :height height :width width :data data})))
+
+;; ### Binary Rasters
+;;
+;; Tokenizing a text grid costs far more than sampling it. A binary
+;; raster holds the same grid as little-endian ints, in square tiles
+;; of `tile-size` cells (edge tiles padded with nodata), after a
+;; header of
+;;
+;;    magic, ncols, nrows, tile-size, nodata, lon-dir, lat-dir (ints)
+;;    step, lon-corner, lat-corner (doubles)
+;;
+;; so that any window can be read with one seek per tile. Grids are
+;; converted once with `ascii->raster`.
+
+(def raster-magic 0x46524d41)
+(def ^:const header-bytes 52)
+
+(defn- le-buffer
+  ^ByteBuffer [^bytes bytes]
+  (.order (ByteBuffer/wrap bytes) ByteOrder/LITTLE_ENDIAN))
+
+(defn read-raster-header
+  "Returns the header of the binary raster at `path` as a map in the
+  form of an entry of `static-datasets`, with `:ncols`, `:nrows` and
+  `:tile-size` added, or nil if the file isn't a binary raster."
+  [path]
+  (let [[path fs] (path-fs path)
+        bytes (byte-array header-bytes)]
+    (with-open [in (.open ^FileSystem fs path)]
+      (when (and (= header-bytes (.read in bytes 0 header-bytes))
+                 (= raster-magic (.getInt (le-buffer bytes))))
+        (let [buf (le-buffer bytes)
+              [_ ncols nrows tile-size nodata lon-dir lat-dir]
+              (repeatedly 7 #(.getInt buf))
+              [step lon-corner lat-corner] (repeatedly 3 #(.getDouble buf))
+              dir #(if (pos? %) + -)]
+          {:ncols ncols :nrows nrows :tile-size tile-size
+           :corner [lon-corner lat-corner]
+           :travel [(dir lon-dir) (dir lat-dir)]
+           :step step
+           :nodata nodata})))))
+
+(defrecord BinaryRaster [path header]
+  IRaster
+  (read-window [_ row-min row-max col-min col-max]
+    (let [{:keys [ncols nrows tile-size]} header
+          ts (long tile-size)
+          row-min (max 0 row-min), row-max (min row-max (dec nrows))
+          col-min (max 0 col-min), col-max (min col-max (dec ncols))
+          height (max 0 (inc (- row-max row-min)))
+          width (max 0 (inc (- col-max col-min)))
+          data (int-array (* height width))
+          tile-cols (quot (+ ncols ts -1) ts)
+          bytes (byte-array (* 4 ts ts))
+          tile (int-array (* ts ts))]
+      (when (pos? (* height width))
+        (let [[path fs] (path-fs path)]
+          (with-open [^FSDataInputStream in (.open ^FileSystem fs path)]
+            (doseq [tr (range (quot row-min ts) (inc (quot row-max ts)))
+                    tc (range (quot col-min ts) (inc (quot col-max ts)))]
+              (.readFully in (long (+ header-bytes
+                                      (* (alength bytes) (+ tc (* tr tile-cols)))))
+                          bytes)
+              (.get (.asIntBuffer (le-buffer bytes)) tile)
+              (let [c0 (max col-min (* tc ts))
+                    c1 (min col-max (+ (* tc ts) ts -1))]
+                (doseq [row (range (max row-min (* tr ts))
+                                   (inc (min row-max (+ (* tr ts) ts -1))))]
+                  (System/arraycopy tile (+ (- c0 (* tc ts)) (* ts (- row (* tr ts))))
+                                    data (+ (- c0 col-min) (* width (- row row-min)))
+                                    (inc (- c1 c0)))))))))
+      {:row0 row-min :col0 col-min :height height :width width :data data})))
+
+(defn- write-tile-row!
+  "Writes one row of tiles, held as `tile-size` full-width rows in
+  `rows`, to `out`."
+  [^OutputStream out ^ints rows ncols tile-size nodata]
+  (let [ts tile-size
+        bytes (byte-array (* 4 ts ts))]
+    (doseq [tc (range (quot (+ ncols ts -1) ts))]
+      (let [buf (.asIntBuffer (le-buffer bytes))
+            c0 (* tc ts)
+            n (min ts (- ncols c0))]
+        (dotimes [r ts]
+          (.put buf rows (+ c0 (* r ncols)) n)
+          (dotimes [_ (- ts n)]
+            (.put buf (int nodata)))))
+      (.write out bytes))))
+
+(defn ascii->raster
+  "Converts the ASCII grid at `ascii-path`, in the form produced by
+  `index-textfile` and described by `ascii-info` (an entry of
+  `static-datasets`), into a binary raster at `raster-path`. Rows
+  missing from the grid are filled with nodata."
+  [ascii-path raster-path ascii-info & {:keys [tile-size] :or {tile-size 256}}]
+  (let [{:keys [step corner travel nodata]} ascii-info
+        [lon-corner lat-corner] corner
+        [lon-dir lat-dir] travel
+        [nrows ncols] (with-open [rdr (grid-reader ascii-path)]
+                        (reduce (fn [[nrows ncols] [row ^StringTokenizer tokens]]
+                                  [(max nrows (inc row))
+                                   (or ncols (.countTokens tokens))])
+                                [0 nil]
+                                (grid-rows rdr)))
+        ncols (or ncols 0)
+        rows (int-array (* tile-size ncols) (int nodata))
+        [path fs] (path-fs raster-path)]
+    (with-open [out (BufferedOutputStream. (.create ^FileSystem fs ^Path path true))
+                rdr (grid-reader ascii-path)]
+      (let [header (le-buffer (byte-array header-bytes))]
+        (doseq [x [raster-magic ncols nrows tile-size nodata
+                   (lon-dir 1) (lat-dir 1)]]
+          (.putInt header (int x)))
+        (doseq [x [step lon-corner lat-corner]]
+          (.putDouble header (double x)))
+        (.write out (.array header)))
+      (loop [tile-row 0, lines (grid-rows rdr)]
+        (when (< (* tile-row tile-size) nrows)
+          (let [[row tokens] (first lines)]
+            (if (and row (= tile-row (quot row tile-size)))
+              (do (parse-row! tokens rows (* ncols (rem row tile-size)) 0 (dec ncols))
+                  (recur tile-row (rest lines)))
+              (do (write-tile-row! out rows ncols tile-size nodata)
+                  (java.util.Arrays/fill rows (int nodata))
+                  (recur (inc tile-row) lines)))))))))
+
+(defn open-raster
+  "Returns an `IRaster` for the grid at `path`: a `BinaryRaster` if
+  the file was written by `ascii->raster`, else an `AsciiGrid`."
+  [path]
+  (if-let [header (read-raster-header path)]
+    (->BinaryRaster path header)
+    (->AsciiGrid path)))
+
+(defn binary-raster
+  "Returns a `BinaryRaster` for the raster at `path`, which must have
+  been written by `ascii->raster`."
+  [path]
+  (if-let [header (read-raster-header path)]
+    (->BinaryRaster path header)
+    (u/throw-illegal (str path " is not a binary raster. "
+                          "Convert it with ascii->raster first."))))
+
+(defn- wrap
+  "Primitive `(mod x range)` for positive `range`."
+  ^double [^double range ^double x]
+  (let [m (rem x range)]
+    (if (or (zero? m) (pos? x)) m (+ m range))))
+
+(defn- grid-index
+  "Returns the index of the step-sized cell into which `offset`
+  falls, after wrapping `offset` onto `[0, range)`. This is the
+  primitive equivalent of `r/bucket` applied to `r/line-torus`."
+  ^long [^double inv-step ^double range ^double offset]
+  (long (int (Math/floor (* (wrap range offset) inv-step)))))
+
+(defn- grid-axes
+  "Returns `[inv-step lat-sign lon-sign lat-corner lon-corner]` for
+  the supplied dataset info."
+  [{:keys [step corner travel]}]
+  (let [[lon-corner lat-corner] corner
+        [lon-dir lat-dir] travel]
+    [(/ 1 step) (double (lat-dir 1)) (double (lon-dir 1))
+     (double lat-corner) (double lon-corner)]))
+
+(defn pixel-rowcols
+  "Returns `[rows cols]`, two long arrays holding the grid row and
+  column of the centroid of each pixel in the supplied `lines` and
+  `samples` (inclusive ranges) of MODIS tile `h`, `v`. Matches
+  `r/wgs84-indexer` for every pixel."
+  [m-res ascii-info h v [line-min line-max] [sample-min sample-max]]
+  (let [width (inc (- sample-max sample-min))
+        n (* width (inc (- line-max line-min)))
+        hs (int-array n h)
+        vs (int-array n v)
+        samples (int-array n)
+        lines (int-array n)]
+    (dotimes [i n]
+      (aset samples i (int (+ sample-min (rem i width))))
+      (aset lines i (int (+ line-min (quot i width)))))
+    (let [[^doubles lats ^doubles lons] (r/modis->latlons m-res hs vs samples lines)
+          [inv-step lat-sign lon-sign lat-corner lon-corner] (grid-axes ascii-info)
+          inv-step (double inv-step)
+          lat-sign (double lat-sign)
+          lon-sign (double lon-sign)
+          lat-corner (double lat-corner)
+          lon-corner (double lon-corner)
+          rows (long-array n)
+          cols (long-array n)]
+      (dotimes [i n]
+        (aset rows i (grid-index inv-step 180.0 (* lat-sign (- (aget lats i) lat-corner))))
+        (aset cols i (grid-index inv-step 360.0 (* lon-sign (- (aget lons i) lon-corner)))))
+      [rows cols])))
+
+(defn window-bounds
+  "Returns `[row-min row-max col-min col-max]`, the grid cells spanned
+  by the supplied lines of MODIS tile `h`, `v` along with a ring of
+  one pixel around them, so that every grid cell whose centroid falls
+  within those lines is included. Tiles that straddle the edge of the
+  grid span every column."
+  [m-res ascii-info h v line-min line-max]
+  (let [edge (r/pixels-at-res m-res)
+        ring (concat (for [line [(dec line-min) (inc line-max)]]
+                       [[line line] [-1 edge]])
+                     (for [sample [-1 edge]]
+                       [[line-min line-max] [sample sample]]))
+        [rows cols] (->> ring
+                         (map (fn [[lines samples]]
+                                (pixel-rowcols m-res ascii-info h v lines samples)))
+                         (apply map (fn [& arrs] (mapcat seq arrs))))]
+    [(max 0 (apply min rows)) (apply max rows)
+     (max 0 (apply min cols)) (apply max cols)]))
+
+(defn upsample-chunk
+  "Returns an int array holding the value of the grid cell under the
+  centroid of each pixel in chunk `id` of MODIS tile `h`, `v`, with
+  `nodata` where a pixel falls outside of the window. Returns nil if
+  no pixel falls within the window."
+  [m-res chunk-size ascii-info window h v id nodata]
+  (let [[width height] (r/chunk-dims m-res chunk-size)
+        line-min (* id height)
+        [^longs rows ^longs cols] (pixel-rowcols m-res ascii-info h v
+                                                 [line-min (+ line-min height -1)]
+                                                 [0 (dec width)])
+        {:keys [row0 col0] wh :height ww :width} window
+        row0 (long row0), col0 (long col0), wh (long wh), ww (long ww)
+        ^ints data (:data window)
+        out (int-array chunk-size (int nodata))]
+    (loop [i 0, hit? false]
+      (if (< i chunk-size)
+        (let [r (- (aget rows i) row0)
+              c (- (aget cols i) col0)]
+          (if (and (< -1 r) (< r wh) (< -1 c) (< c ww))
+            (do (aset out i (aget data (+ c (* r ww))))
+                (recur (inc i) true))
+            (recur (inc i) hit?)))
+        (when hit? out)))))
+
+(defn downsample-chunk
+  "Returns an int array holding, for each pixel in chunk `id` of MODIS
+  tile `h`, `v`, the sum or max (`agg` of `:sum` or `:max`) of the
+  grid cells whose centroids fall within it, with `nodata` for pixels
+  that contain none. Returns nil if no pixel contains a cell."
+  [m-res chunk-size ascii-info window h v id agg nodata]
+  {:pre [(#{:sum :max} agg)]}
+  (let [[width height] (r/chunk-dims m-res chunk-size)
+        width (long width)
+        line-min (long (* id height))
+        line-max (+ line-min (long height) -1)
+        [row-min row-max col-min col-max] (window-bounds m-res ascii-info h v
+                                                         line-min line-max)
+        {:keys [row0 col0] wh :height ww :width} window
+        row0 (long row0), col0 (long col0), ww (long ww)
+        ^ints data (:data window)
+        row-min (max row-min row0), row-max (min row-max (+ row0 wh -1))
+        col-min (max col-min col0), col-max (min col-max (+ col0 ww -1))
+        ncols (max 0 (inc (- col-max col-min)))
+        step (double (:step ascii-info))
+        [_ lat-sign lon-sign lat-corner lon-corner] (grid-axes ascii-info)
+        lat-sign (double lat-sign)
+        lon-sign (double lon-sign)
+        lat-corner (double lat-corner)
+        lon-corner (double lon-corner)
+        sum? (= agg :sum)
+        acc (long-array chunk-size)
+        seen (boolean-array chunk-size)
+        lats (double-array ncols)
+        lons (double-array ncols)]
+    (doseq [row (range row-min (inc row-max))]
+      (let [row (long row)
+            lat (+ lat-corner (* lat-sign (* (+ row 0.5) step)))]
+        (dotimes [i ncols]
+          (let [lon (+ lon-corner (* lon-sign (* (+ col-min i 0.5) step)))]
+            (aset lats i (+ -90.0 (wrap 180.0 (+ lat 90.0))))
+            (aset lons i (+ -180.0 (wrap 360.0 (+ lon 180.0)))))))
+      (let [[^ints hs ^ints vs ^ints samples ^ints lines] (r/latlons->modis m-res lats lons)]
+        (dotimes [i ncols]
+          (let [line (aget lines i)]
+            (when (and (== h (aget hs i)) (== v (aget vs i))
+                       (<= line-min line) (<= line line-max))
+              (let [idx (+ (aget samples i) (* width (- line line-min)))
+                    val (long (aget data (+ (- (+ col-min i) col0)
+                                            (* ww (- row row0)))))]
+                (aset acc idx (long (cond (not (aget seen idx)) val
+                                          sum? (+ val (aget acc idx))
+                                          :else (max val (aget acc idx)))))
+                (aset seen idx true)))))))
+    (when (some true? seen)
+      (let [out (int-array chunk-size (int nodata))]
+        (dotimes [i chunk-size]
+          (when (aget seen i)
+            (aset out i (int (aget acc i)))))
+        out))))
+
+(defmapcatop [sample-raster [m-res chunk-size dataset agg raster-path]]
+  "Samples the binary raster at `raster-path` into chunk `id` of MODIS
+  tile `h`, `v`, returning the chunk's values as a 1-tuple, or nothing
+  if the chunk falls outside of the raster. Grids coarser than `m-res`
+  are upsampled; finer grids are aggregated with `agg`. The window of
+  the raster covering a tile is read once and reused for consecutive
+  chunks of that tile."
+  {:stateful true}
+  ([] [(binary-raster raster-path) (atom nil)])
+  ([[raster cache] h v id]
+     (let [info (static-datasets (keyword dataset))
+           [tile window] @cache
+           window (if (= tile [h v])
+                    window
+                    (let [edge (dec (r/pixels-at-res m-res))
+                          window (apply read-window raster
+                                        (window-bounds m-res info h v 0 edge))]
+                      (reset! cache [[h v] window])
+                      window))
+           chunk (if (>= (:step info) (r/wgs84-resolution m-res))
+                   (upsample-chunk m-res chunk-size info window h v id -9999)
+                   (downsample-chunk m-res chunk-size info window h v id agg -9999))]
+       (when chunk
+         [[(vec chunk)]])))
+  ([_] nil))
+
+(defn raster-chunks
+  "Returns a query that samples the binary raster at `raster-path` into
+  DataChunks for every `[?mod-h ?mod-v ?chunk-id]` produced by
+  `chunk-src`, without a reduce step. `agg` (`:sum` or `:max`)
+  combines grid cells finer than `m-res`."
+  [m-res chunk-size dataset agg raster-path chunk-src]
+  (<- [?tile-chunk]
+      (chunk-src ?h ?v ?id)
+      (sample-raster [m-res chunk-size dataset agg raster-path] ?h ?v ?id :> ?data)
+      (thrift/ModisChunkLocation* m-res ?h ?v ?id chunk-size :> ?tile-loc)
+      (thrift/DataChunk* dataset ?tile-loc ?data "00" :> ?tile-chunk)
+      (:distinct false)))
+
 ;; TODO: Make a note that gzipped files can't be unpacked well when
 ;; they exist on S3. They need to be moved over to HDFS for that. I
 ;; think the answer here is to code up some sort of way to transfer
@@ -137,3 +554,208 @@
   [chunk-size dataset agg line-tap pix-tap]
   (-> (absorb-modis "500" dataset pix-tap line-tap agg)
       (agg-chunks "500" chunk-size -9999)))
+
+;; ### Static Attribute Store
+;;
+;; Estimation and postprocessing join the per-pixel static source
+;; (`?s-res ?mod-h ?mod-v ?sample ?line ?vcf ?gadm ?ecoid ?hansen
+;; ?coast-dist`) against each of their inputs, shuffling every static
+;; tuple on every run. The static values never change, so we pack
+;; them once into a file per tile. Pixels are sorted by index (`sample
+;; + line * width`), so each block of `static-block-pixels` pixels
+;; covers a range of rows; a block holds its pixel indices followed by
+;; one int column per attribute. A footer lists the first pixel index
+;; of each block. Jobs look pixels up map-side, reading only the
+;; blocks they need and keeping the most recently used ones in memory,
+;; up to `static-cache-bytes`, so inputs that aren't ordered by tile
+;; don't reload whole tiles. Blocks are read straight from the store
+;; path rather than shipped through the distributed cache: a task
+;; touches only a few blocks of each tile, while the cache would copy
+;; every tile of the store to every node.
+
+(def static-fields ["?vcf" "?gadm" "?ecoid" "?hansen" "?coast-dist"])
+
+;; Pixels per block of a packed tile, about 100KB of attributes.
+(def static-block-pixels 4096)
+
+;; Bytes of blocks each task keeps in memory while looking up static
+;; attributes.
+(def static-cache-bytes (* 64 1024 1024))
+
+(defn static-tile-path
+  "Returns the path of the file for the supplied tile in the static
+  store at `store-path`."
+  [store-path s-res mod-h mod-v]
+  (format "%s/%s/%s" store-path s-res (r/hv->tilestring mod-h mod-v)))
+
+(defn static-store?
+  "Returns true if `path` holds a static store, which carries the
+  `_tiles` manifest written by `static-store-query`."
+  [path]
+  (let [[path fs] (path-fs (str path "/_tiles"))]
+    (.exists ^FileSystem fs path)))
+
+(defn write-static-tile!
+  "Streams `pixels`, an iterator over `[idx & vals]` tuples in
+  ascending order of pixel index, to a packed tile at `path`, in
+  blocks of `block-size` pixels. The footer holds the first pixel
+  index of each block, then the pixel count, block size and block
+  count. Only one block is held in memory. Returns the number of
+  pixels written."
+  [path block-size ^Iterator pixels]
+  (let [ncols (inc (count static-fields))
+        block-size (int block-size)
+        arrs (vec (repeatedly ncols #(int-array block-size)))
+        buf (ByteBuffer/allocate (* 4 ncols block-size))
+        [path fs] (path-fs path)]
+    (with-open [out (.create ^FileSystem fs ^Path path true)]
+      (let [flush! (fn [m]
+                     (.clear buf)
+                     (doseq [^ints arr arrs]
+                       (dotimes [i m]
+                         (.putInt buf (aget arr i))))
+                     (.write out (.array buf) 0 (.position buf)))
+            [n firsts] (loop [n 0, m 0, firsts (transient [])]
+                         (if (.hasNext pixels)
+                           (let [pixel (.next pixels)
+                                 firsts (if (zero? m) (conj! firsts (first pixel)) firsts)]
+                             (dotimes [c ncols]
+                               (aset ^ints (arrs c) m (int (nth pixel c))))
+                             (if (== (inc m) block-size)
+                               (do (flush! block-size)
+                                   (recur (inc n) 0 firsts))
+                               (recur (inc n) (inc m) firsts)))
+                           (do (when (pos? m) (flush! m))
+                               [n (persistent! firsts)])))]
+        (doseq [idx firsts]
+          (.writeInt out (int idx)))
+        (doseq [x [n block-size (count firsts)]]
+          (.writeInt out (int x)))
+        n))))
+
+(defn read-static-index
+  "Returns the footer of the packed tile at `path` as a map of the
+  pixel count `:n`, the `:block-size` and `:firsts`, an int array of
+  the first pixel index of each block, or nil if no such tile
+  exists."
+  [path]
+  (let [[path fs] (path-fs path)]
+    (when (.exists ^FileSystem fs path)
+      (with-open [^FSDataInputStream in (.open ^FileSystem fs path)]
+        (let [len (.getLen (.getFileStatus ^FileSystem fs path))
+              _ (.seek in (- len 12))
+              n (.readInt in)
+              block-size (.readInt in)
+              firsts (int-array (.readInt in))]
+          (.seek in (- len 12 (* 4 (alength firsts))))
+          (dotimes [b (alength firsts)]
+            (aset firsts b (.readInt in)))
+          {:n n :block-size block-size :firsts firsts})))))
+
+(defn read-static-block
+  "Returns `[idxs cols]`, the sorted pixel indices and attribute
+  columns of block `b` of the packed tile at `path`, whose footer is
+  `index` (see `read-static-index`)."
+  [path {:keys [n block-size]} b]
+  (let [ncols (inc (count static-fields))
+        m (min block-size (- n (* b block-size)))
+        bytes (byte-array (* 4 ncols m))
+        [path fs] (path-fs path)]
+    (with-open [^FSDataInputStream in (.open ^FileSystem fs path)]
+      (.readFully in (long (* 4 ncols block-size b)) bytes))
+    (let [ints (.asIntBuffer (ByteBuffer/wrap bytes))
+          [idxs & cols] (repeatedly ncols #(let [col (int-array m)]
+                                             (.get ints col)
+                                             col))]
+      [idxs (vec cols)])))
+
+(defbufferiterop [pack-static-tile [store-path]]
+  "Receives the static tuples of a tile, sorted by line and sample,
+  and streams them to the tile's file in the store. Returns the
+  number of pixels written."
+  [^Iterator tuples-iter]
+  (let [[s-res h v :as head] (.next tuples-iter)
+        edge (r/pixels-at-res s-res)
+        pixel (fn [[_ _ _ sample line & vals]]
+                (vec (cons (+ sample (* line edge)) vals)))]
+    [(write-static-tile! (static-tile-path store-path s-res h v)
+                         static-block-pixels
+                         (.iterator ^Iterable (map pixel (cons head (iterator-seq tuples-iter)))))]))
+
+(defn static-store-query
+  "Returns a query that packs `static-src` into a static store at
+  `store-path`, one file per tile, and emits `[?s-res ?mod-h ?mod-v
+  ?count]` for each tile written; sink it to `<store-path>/_tiles`."
+  [store-path static-src]
+  (let [fields (concat ["?s-res" "?mod-h" "?mod-v" "?sample" "?line"] static-fields)]
+    (<- [?s-res ?mod-h ?mod-v ?count]
+        (static-src :>> fields)
+        (:sort ?line ?sample)
+        (pack-static-tile [store-path] :<< fields :> ?count))))
+
+(defn- cache-block!
+  "Adds `block` to `blocks`, a map in access order, under `k`, then
+  drops the least recently used blocks until the total size held in
+  `total` is back under `static-cache-bytes`."
+  [^java.util.LinkedHashMap blocks ^longs total k block]
+  (let [size (fn [[^ints idxs cols]]
+               (* 4 (alength idxs) (inc (count cols))))]
+    (.put blocks k block)
+    (aset total 0 (+ (aget total 0) (long (size block))))
+    (let [it (.iterator (.values blocks))]
+      (while (and (> (aget total 0) (long static-cache-bytes))
+                  (> (.size blocks) 1))
+        (aset total 0 (- (aget total 0) (long (size (.next it)))))
+        (.remove it)))
+    block))
+
+(defmapcatop [static-lookup [store-path]]
+  "Looks up the static attributes (see `static-fields`) of the
+  supplied pixel in the store at `store-path`, emitting nothing for
+  pixels missing from the store, as an inner join would. Each task
+  reads a tile's footer the first time it sees the tile, and then
+  only the blocks that hold its pixels."
+  {:stateful true}
+  ([] [(java.util.HashMap.)
+       (java.util.LinkedHashMap. 16 0.75 true)
+       (long-array 1)])
+  ([[^java.util.Map tiles blocks total] s-res h v sample line]
+     (let [tk [s-res h v]
+           tile (if (.containsKey tiles tk)
+                  (.get tiles tk)
+                  (let [path (static-tile-path store-path s-res h v)
+                        tile (when-let [index (read-static-index path)]
+                               (assoc index :path path :edge (r/pixels-at-res s-res)))]
+                    (.put tiles tk tile)
+                    tile))]
+       (when-let [{:keys [path edge ^ints firsts] :as index} tile]
+         (let [idx (int (+ sample (* line edge)))
+               b (let [b (java.util.Arrays/binarySearch firsts idx)]
+                   (if (neg? b) (- -2 b) b))]
+           (when-not (neg? b)
+             (let [bk [s-res h v b]
+                   [^ints idxs cols] (or (.get ^java.util.Map blocks bk)
+                                         (cache-block! blocks total bk
+                                                       (read-static-block path index b)))
+                   i (java.util.Arrays/binarySearch idxs idx)]
+               (when-not (neg? i)
+                 [(mapv #(aget ^ints % i) cols)])))))))
+  ([[^java.util.Map tiles ^java.util.Map blocks]]
+     (.clear tiles)
+     (.clear blocks)))
+
+(defn static-attrs
+  "Returns a predicate macro that binds the static attributes of a
+  pixel,
+
+    (static ?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist)
+
+  from `static-src`, which is either a static source or the path to
+  a static store. A store is read map-side; a source is joined."
+  [static-src]
+  (if (string? static-src)
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist]
+        (static-lookup [static-src] ?s-res ?mod-h ?mod-v ?sample ?line
+                       :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist))
+    (<- [?s-res ?mod-h ?mod-v ?sample ?line :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist]
+        (static-src ?s-res ?mod-h ?mod-v ?sample ?line ?vcf ?gadm ?ecoid ?hansen ?coast-dist))))
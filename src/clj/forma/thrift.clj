@@ -391,21 +391,29 @@
   (get-temporal-res [x] (.getTemporalRes x))
   (get-date [x] (.getDate x)))
 
+;; Structs are unpacked through their generated getters, in IDL field
+;; order, rather than by walking `metaDataMap` and boxing each field
+;; through `getFieldValue`. `unpack` is called several times per tuple
+;; in most queries, so this matters; see `benchmark-unpack` in the
+;; tests.
+
 (extend-protocol IUnpackable
   LocationProperty
   (unpack [x] (->> x get-property get-field-value unpack))
 
   ModisPixelLocation
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (ModisPixelLocation/metaDataMap)))))
+  (unpack [x] [(.getResolution x) (.getTileH x) (.getTileV x)
+               (.getSample x) (.getLine x)])
 
   ModisChunkLocation
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (ModisChunkLocation/metaDataMap)))))
+  (unpack [x] [(.getResolution x) (.getTileH x) (.getTileV x)
+               (.getChunkID x) (.getChunkSize x)])
 
   FireValue
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (FireValue/metaDataMap)))))
+  (unpack [x] [(.getTemp330 x) (.getConf50 x) (.getBothPreds x) (.getCount x)])
 
   TimeSeries
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (TimeSeries/metaDataMap)))))
+  (unpack [x] [(.getStartIdx x) (.getEndIdx x) (.getSeries x)])
 
   FormaArray
   (unpack [x] (->> x .getValues vec))
@@ -431,18 +439,23 @@
             :else val)))
 
   FormaValue
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (FormaValue/metaDataMap)))))
+  (unpack [x] [(.getFireValue x) (.getShortDrop x) (.getLongDrop x)
+               (.getTStat x) (.getParamBreak x)])
 
+  ;; minParamBreak is deprecated, and left out.
   NeighborValue
-  (unpack [x] (vec (map #(.getFieldValue x %)
-                        (filter #(not= "MIN_PARAM_BREAK" (str %)) ;; deprecated field
-                                (keys (NeighborValue/metaDataMap))))))
+  (unpack [x] [(.getFireValue x) (.getNumNeighbors x)
+               (.getAvgShortDrop x) (.getMinShortDrop x)
+               (.getAvgLongDrop x) (.getMinLongDrop x)
+               (.getAvgTStat x) (.getMinTStat x)
+               (.getAvgParamBreak x) (.getMaxParamBreak x)])
 
   FireArray
   (unpack [x] (->> x .getFires vec))
 
   DataChunk
-  (unpack [x] (vec (map #(.getFieldValue x %) (keys (DataChunk/metaDataMap)))))
+  (unpack [x] [(.getDataset x) (.getLocationProperty x) (.getChunkValue x)
+               (.getTemporalRes x) (.getDate x) (.getPedigree x)])
 
   ;; DataChunk
   ;; (unpack [x]
@@ -471,9 +484,35 @@
   (vector (unpack x)))
 
 (defn obj-contains-nodata?
-  "Check whether any fields in thrift object contain nodata value"
+  "Check whether any fields in thrift object contain nodata value.
+
+  FormaValue and NeighborValue objects are checked for every tuple in
+  estimation, so their double fields are compared directly, stopping
+  at the first match, rather than unpacked into a set. Any other
+  object is unpacked."
   [nodata obj]
-  (-> obj
-      (unpack)
-      (set)
-      (contains? nodata)))
+  (condp instance? obj
+    FormaValue
+    (let [^FormaValue x obj
+          nodata (double nodata)]
+      (or (== nodata (.getShortDrop x))
+          (== nodata (.getLongDrop x))
+          (== nodata (.getTStat x))
+          (== nodata (.getParamBreak x))))
+
+    NeighborValue
+    (let [^NeighborValue x obj
+          nodata (double nodata)]
+      (or (== nodata (.getAvgShortDrop x))
+          (== nodata (.getMinShortDrop x))
+          (== nodata (.getAvgLongDrop x))
+          (== nodata (.getMinLongDrop x))
+          (== nodata (.getAvgTStat x))
+          (== nodata (.getMinTStat x))
+          (== nodata (.getAvgParamBreak x))
+          (== nodata (.getMaxParamBreak x))))
+
+    (-> obj
+        (unpack)
+        (set)
+        (contains? nodata))))
@@ -62,6 +62,18 @@ month    1       12)
  "8"  "2003-04-12" 1530
  "8"  "2003-12-31" 1563)
 
+(tabular
+ (fact "Fast date conversion matches `datetime->period`."
+   (ymd->period ?res ?date) => (datetime->period ?res ?date)
+   (date-parts->period ?res ?y ?m ?d) => (datetime->period ?res ?date))
+ ?res ?date        ?y   ?m ?d
+ "32" "2005-12-04" 2005 12 4
+ "16" "2005-12-04" 2005 12 4
+ "16" "2004-12-31" 2004 12 31
+ "8"  "2003-04-12" 2003 4  12
+ "1"  "2012-03-01" 2012 3  1
+ "1"  "2000-11-01" 2000 11 1)
+
 (facts "Beginning tests!"
   (beginning "16" "2005-12-31") => "2005-12-19"
   (beginning "32" "2005-12-31") => "2005-12-01"
@@ -72,7 +72,21 @@
   (vec->arr-str [1 2.0 3]) => "\"{1,2.0,3}\"")
 
 (fact "Test `arr-str->vec`."
-  (arr-str->vec "\"{1,2.0,3}\"") => [1 2.0 3])
+  (arr-str->vec "\"{1,2.0,3}\"") => [1 2.0 3]
+  (arr-str->vec "{71,72}") => [71 72]
+  (arr-str->vec "\"{}\"") => [])
+
+(tabular
+ (fact "Test that `unpack-period-counts` reverses `pack-period-counts`."
+   (unpack-period-counts (pack-period-counts ?periods ?counts)) => [?periods ?counts])
+ ?periods ?counts
+ [] []
+ [71] [1]
+ [71 72] [2 1]
+ [-3 0 500 100000] [1 123456789 0 2])
+
+(fact "Test `pack-period-counts`."
+  (vec (pack-period-counts [71 72] [2 1])) => [4 -114 1 2 4 2])
 
 (fact "Test `zoom-out`."
   (zoom-out 50064) => 25032
@@ -108,6 +122,25 @@
                 [25032 36353 16 72 1]
                 [50064 72707 17 72 1]]))
 
+(fact "Test `rollup-zoom`."
+  (let [src [[50064 72706 17 71 1]
+             [50064 72707 17 72 1]
+             [50065 72706 17 71 2]]]
+    (rollup-zoom src))
+  => (produces [[25032 36353 16 71 3]
+                [25032 36353 16 72 1]]))
+
+(fact "Test `gen-zoom-pyramid` against `gen-all-zooms`."
+  (let [src [[50064 72706 17 71]
+             [50064 72707 17 72]
+             [50064 72705 17 71]
+             [50065 72706 17 71]]]
+    (gen-zoom-pyramid src 17 14) => (produces (first (??- (gen-all-zooms src 14))))
+    (gen-zoom-pyramid src 17 17) => (produces [[50064 72705 17 71 1]
+                                               [50064 72706 17 71 1]
+                                               [50064 72707 17 72 1]
+                                               [50065 72706 17 71 1]])))
+
 (fact "Test agg-periods-counts`."
   (let [src [[6258 9088 14 71 2]
              [12516 18176 15 71 2]
@@ -127,3 +160,20 @@
                 [50064 72705 17 "\"{71}\"" "\"{1}\""]
                 [50064 72706 17 "\"{71}\"" "\"{1}\""]
                 [50064 72707 17 "\"{72}\"" "\"{1}\""]]))
+
+(fact "Test `agg-periods-counts-packed`."
+  (let [src [[6258 9088 14 72 1]
+             [6258 9088 14 71 2]]]
+    (<- [?x ?y ?z ?periods ?counts]
+        ((agg-periods-counts-packed src) ?x ?y ?z ?packed)
+        (unpack-period-counts ?packed :> ?periods ?counts)))
+  => (produces [[6258 9088 14 [71 72] [2 1]]]))
+
+(fact "Test that `packed-tile-table->long` reverses `agg-periods-counts-packed`."
+  (let [src [[6258 9088 14 72 1]
+             [6258 9088 14 71 2]
+             [50064 72706 17 71 1]]]
+    (packed-tile-table->long (agg-periods-counts-packed src)))
+  => (produces [[6258 9088 14 71 2]
+                [6258 9088 14 72 1]
+                [50064 72706 17 71 1]]))
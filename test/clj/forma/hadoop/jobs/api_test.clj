@@ -8,6 +8,7 @@
         [midje sweet cascalog])
   (:use forma.hadoop.jobs.api :reload)
   (:require [cascalog.ops :as c]
+            [cascalog.io :as io]
             [forma.reproject :as r]
             [forma.date-time :as date]
             [forma.utils :as u]))
@@ -92,3 +93,23 @@
   (prob-series->latest est-map sample-forma-data 20)
   => (produces
       [[9.981249999999996 101.53892301056953 "IDN" "IDN" 88500 "2006-03-22" 33]]))
+
+(fact "Test `year-slices`."
+  (let [src [[[10 20 30 40]]]]
+    (<- [?year ?first ?slice]
+        (src ?series)
+        (year-slices "16" 826 ?series :> ?year ?first ?slice)))
+  => (produces [["2005" 826 [10 20]] ["2006" 828 [30 40]]]))
+
+(fact "Test that the partition files written by `prob-series->partitions`
+read back as the output of `prob-series->long-ts`."
+  (let [out-path (.getPath (io/temp-dir "api-partitions"))
+        partitions (first (??- (prob-series->partitions est-map sample-forma-data
+                                                         out-path 50)))
+        long-ts (first (??- (prob-series->long-ts est-map sample-forma-data 50)))]
+    partitions => (just [["IDN" "2005" 2] ["IDN" "2006" 2]] :in-any-order)
+    (set (mapcat (fn [[iso year _]]
+                   (api-partition-rows out-path "16" iso year))
+                 partitions))
+    => (set (for [[lat lon iso _ gadm2 date _ prob] long-ts]
+              [lat lon iso gadm2 date prob]))))
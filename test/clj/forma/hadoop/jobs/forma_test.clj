@@ -17,7 +17,7 @@
         [clojure.string :only (join)]
         [forma.hadoop.pail :only (to-pail split-chunk-tap)]
         [forma.hadoop.predicate :as p]
-        [forma.ops.classify :only (beta-dict)])
+        [forma.ops.classify :only (beta-table)])
   (:require [forma.testing :as t]
             [forma.thrift :as thrift]
             [forma.utils :as u]
@@ -418,6 +418,27 @@
                 [3 5.0 1.0 6.0 2.0 7.0
                  3.0 8.0 12.0]]))
 
+(fact "Check `window-memberships`. Pixels within `num-neighbors` of a
+  window edge also belong to the halo of the adjacent window."
+  (<- [?win-col ?win-row ?s ?l]
+      ([[5 5]] ?sample ?line)
+      (window-memberships [10 10 1] ?sample ?line :> ?win-col ?win-row ?s ?l))
+  => (produces [[0 0 5 5]])
+
+  (<- [?win-col ?win-row ?s ?l]
+      ([[10 9]] ?sample ?line)
+      (window-memberships [10 10 1] ?sample ?line :> ?win-col ?win-row ?s ?l))
+  => (produces [[0 0 10 9] [0 1 10 -1] [1 0 0 9] [1 1 0 -1]]))
+
+(fact "`neighbor-query` finds neighbors across window edges, so that
+  splitting the tile into 1x1 windows changes nothing."
+  (let [query (fn [dims]
+                (let [src (neighbor-query (assoc test-map :window-dims dims) val-src)]
+                  (<- [?s-res ?pd ?modh ?modv ?sample ?line ?unpacked-neighbor]
+                      (src ?s-res ?pd ?modh ?modv ?sample ?line _ ?neighbor-val)
+                      (thrift/unpack* ?neighbor-val :> ?unpacked-neighbor))))]
+    (query [1 1]) => (produces (first (??- (query [4 4]))))))
+
 (fact "Check `process-neighbors`."
   (let [window-dims [4 4]
         nodata -9999.0
@@ -480,8 +501,8 @@
         neighbor-val (thrift/NeighborValue* (thrift/FireValue* 1 0 0 1) 1 1. 2. 3. 4. 5. 6. 7. 8.)
         src [[1 0 forma-val neighbor-val]
              [2 1 forma-val neighbor-val]]
-        betas (beta-dict [["500" 0 (vec (repeat 21 0.5))]
-                          ["500" 1 (vec (repeat 21 0.75))]])]
+        betas (beta-table [["500" 0 (vec (repeat 21 0.5))]
+                           ["500" 1 (vec (repeat 21 0.75))]])]
     (<- [?id ?prob]
         (src ?id ?eco ?forma-val ?neighbor-val)
         (apply-betas [betas] ?eco ?forma-val ?neighbor-val :> ?prob)))
@@ -497,6 +518,16 @@
         (consolidate-timeseries nodata ?period ?f1 ?f2 ?f3 :> ?per-ts ?f1-ts ?f2-ts ?f3-ts))
     => (produces [[1 [827 -9999 829] [1 -9999 2] [2 -9999 3] [3 -9999 4]]])))
 
+(fact "Check `consolidate-timeseries-iter`."
+  (let [nodata -9999
+        src [[1 829 2 3 4]
+             [1 827 1 2 3]]]
+    (<- [?id ?per-ts ?f1-ts ?f2-ts ?f3-ts]
+        (src ?id ?period ?f1 ?f2 ?f3)
+        (:sort ?period)
+        (consolidate-timeseries-iter nodata ?period ?f1 ?f2 ?f3 :> ?per-ts ?f1-ts ?f2-ts ?f3-ts))
+    => (produces [[1 [827 -9999 829] [1 -9999 2] [2 -9999 3] [3 -9999 4]]])))
+
 (fact "Test `forma-estimate`."
   (let [beta-src [["500" 0 (vec (repeat 21 0.5))]
                   ["500" 21 (vec (repeat 21 0.55))]
@@ -42,6 +42,48 @@ series."
                     [51295N 32603 16 "\"{74}\"" "\"{1}\""]
                     [102591 65206 17 "\"{74}\"" "\"{1}\""]]))))
 
+(fact "Test `read-tile-line`."
+  (read-tile-line "6258\t9088\t14\t\"{71,72}\"\t\"{2,1}\"")
+  => [6258 9088 14 "\"{71,72}\"" "\"{2,1}\""])
+
+(tabular
+ (fact "Test that updating a previous `forma->website` run with
+`forma->website-update` matches recomputing the tile table from
+scratch. The previous run saw only the first `?n` periods; the first
+pixel crosses the threshold in the fifth. `?since` falls in the month
+of the first period missing from the previous run, or earlier."
+   (let [nodata -9999.0
+         full [["500" 28 8 420 2182 827 [0.0002 0.002 0.02 0.2 0.2 0.2 0.9] 88500 40158]
+               ["500" 28 8 421 2182 827 [0.0004 0.004 0.04 0.4 0.4 0.4 0.9] 88500 40158]
+               ["500" 28 8 422 2182 827 [0.0006 0.006 0.06 0.6 0.6 0.6 0.9] 88500 40158]
+               ["500" 28 8 423 2182 827 [0.0008 0.008 0.08 0.8 0.8 0.8 0.9] 88500 40158]]
+         website (fn [src]
+                   (first (??- (forma->website src nodata 17 14 "16" "32"
+                                               "2005-12-19" 50))))
+         prev (for [row full]
+                (update-in row [6] #(vec (take ?n %))))]
+     (forma->website-update full (website prev) nodata 17 14 "16" "32" ?since 50)
+     => (produces (website full))))
+ ?n ?since
+ 4 "2006-01-01"
+ 5 "2006-02-01"
+ 6 "2006-03-01")
+
+(fact "Test that `forma->website-update` reads and writes packed tile
+tables, agreeing with the text format once decoded."
+  (let [nodata -9999.0
+        full [["500" 28 8 420 2182 827 [0.0002 0.002 0.02 0.2 0.2 0.2 0.9] 88500 40158]
+              ["500" 28 8 421 2182 827 [0.0004 0.004 0.04 0.4 0.4 0.4 0.9] 88500 40158]]
+        website (fn [src fmt]
+                  (first (??- (forma->website src nodata 17 14 "16" "32"
+                                              "2005-12-19" 50 nil fmt))))
+        prev (for [row full]
+               (update-in row [6] #(vec (take 5 %))))]
+    (decode-tile-table :packed
+                       (forma->website-update full (website prev :packed) nodata 17 14
+                                              "16" "32" "2006-02-01" 50 nil :packed))
+    => (produces (first (??- (decode-tile-table :text (website full :text)))))))
+
 (fact "Test `probs->country-stats."
   (let [thresh 50
         t-res "16"
@@ -78,3 +120,56 @@ series."
     => (produces [["9.99791667" "101.54412568" "IDN" 88500 "2006-01-17"]])))
 
 (future-fact "Test `forma-website`. Need real data to make test more meaningful.")
+
+(tabular
+ (fact "Test `clean-and-hit`. The discounted hit is later than the
+undiscounted one, or missing altogether."
+   (clean-and-hit ?disc -9999.0 ?thresh ?series) => ?result)
+ ?disc ?thresh ?series ?result
+ 1 50 [0.1 0.9 0.75] [[10 50 58] 1 [10 50 58] 1]
+ 0.9 50 [0.1 0.9 0.75] [[9 45 52] 2 [10 50 58] 1]
+ 0.5 50 [0.4 0.9 0.95] [[20 32 38] nil [40 65 75] 1]
+ 1 nil [0.4 0.5 0.6] [[40 45 50] nil [40 45 50] nil])
+
+(fact "Test that `postprocess-products` matches the standalone product queries."
+  (let [thresh 50
+        nodata -9999.0
+        disc-map {2 0.9}
+        src [["500" 28 8 0 0 827 [0.1 0.9 0.75] 88500 2]
+             ["500" 28 8 0 1 827 [0.1 0.1 0.1] 88500 2]]
+        static-src [["500" 28 8 0 0 50 -1 2 1 4]
+                    ["500" 28 8 0 1 50 -1 2 0 4]]
+        products (postprocess-products src static-src nodata 17 16 thresh
+                                       "16" "32" disc-map)]
+    (:download products) => (produces (first (??- (forma-download src thresh "16" nodata disc-map))))
+    (:blue-raster products) => (produces (first (??- (forma->blue-raster src static-src nodata disc-map))))
+    (:david products) => (produces (first (??- (forma->david nodata src static-src))))
+    (:website products) => (produces (first (??- (forma->website src nodata 17 16 "16" "32"
+                                                                "2005-12-19" thresh disc-map))))
+    (:country-stats products) => (produces [["IDN" 72 "2006-01-01" 1]])))
+
+(fact "Test `thresh-hits`."
+  (thresh-hits [50 75 90 100] [10 55 80 85 95] [10 60 90 95 99])
+  => [[1 2 4 nil] [1 2 2 nil]])
+
+(fact "Test that `threshold-products` matches the single-threshold queries."
+  (let [nodata -9999.0
+        disc-map {2 0.9}
+        src [["500" 28 8 0 0 827 [0.1 0.9 0.75] 88500 2]
+             ["500" 28 8 0 1 827 [0.1 0.6 0.6] 88500 2]
+             ["500" 28 8 0 2 827 [0.1 0.1 0.1] 88500 2]]
+        products (threshold-products src nodata 17 16 [50 70] "16" "32" disc-map)]
+    (keys products) => (contains [[:website 50] [:website 70] [:download 50]
+                                  [:download 70] [:country-stats 50]
+                                  [:country-stats 70]] :in-any-order)
+    (products [:download 50]) => (produces (first (??- (forma-download src 50 "16" nodata disc-map))))
+    (products [:download 70]) => (produces (first (??- (forma-download src 70 "16" nodata disc-map))))
+    (products [:website 70]) => (produces (first (??- (forma->website src nodata 17 16 "16" "32"
+                                                                     "2005-12-19" 70 disc-map))))))
+
+(fact "Test that `hits->cdm` drops pixels without an ISO code, as
+`forma->cdm` did before it delegated to `prep-pixels`."
+  (let [src [["500" 28 8 422 2182 827 [0.6 0.6 0.6] 88500 40158]
+             ["500" 28 8 423 2182 827 [0.8 0.8 0.8] -1 40158]]]
+    (forma->cdm src -9999.0 17 "16" "32" "2005-12-19" 50)
+    => (produces [[102590 65206 17 71]])))
@@ -51,6 +51,22 @@
                 [8 1 3 [8 -9999 8]]
                 [9 1 3 [9 -9999 9]]]))
 
+(fact
+  "Test `timeseries-iter` query; output should match `timeseries`."
+  (let [src [[1 (thrift/pack (range 3))]
+             [4 (thrift/pack (range 3))]
+             [3 (thrift/pack (range 3))]]
+        src (<- [?pix-idx ?t-start ?t-end ?series]
+                (src ?date ?ts)
+                (:sort ?date)
+                (timeseries-iter [-9999.0] ?date ?ts :> ?pix-idx ?t-start ?t-end ?series))]
+    (<- [?pix-idx ?t-start ?t-end ?ts-vec]
+        (src ?pix-idx ?t-start ?t-end ?series)
+        (thrift/unpack* ?series :> ?ts-vec)))
+  => (produces [[0 1 4 [0 -9999 0 0]]
+                [1 1 4 [1 -9999 1 1]]
+                [2 1 4 [2 -9999 2 2]]]))
+
 (fact
   "Test form-tseries"
   (let [mk-ts (form-tseries -9999.0)
@@ -126,6 +142,21 @@
                                                 (thrift/FireValue* 30 30 30 30)])]
        (produces [["fire" "500" 28 8 0 0 TS]])))
 
+(fact
+  "Test running-sums!"
+  (map vec (running-sums! [(int-array [1 0 2]) (int-array [0 3 0])]))
+  => [[1 1 3] [0 3 3]])
+
+(fact
+  "Test accumulate-fires; should match `sum-fire-series`."
+  (let [src (test-fires START-DAY SERIES-LENGTH)]
+    (accumulate-fires src T-RES START-PERIOD NUM-PERIODS))
+  => (let [TS (thrift/TimeSeries* START-PERIOD [(thrift/FireValue* 16 16 16 16)
+                                                (thrift/FireValue* 30 30 30 30)
+                                                (thrift/FireValue* 30 30 30 30)
+                                                (thrift/FireValue* 30 30 30 30)])]
+       (produces [["fire" "500" 28 8 0 0 TS]])))
+
 (fact
   "Test create-fire-series. Should return a monotonically increasing
    series."
@@ -151,3 +182,39 @@
     today-period => end
     first-fire-count => 15
     last-fire-count => len))
+
+(fact
+  "Test pad-fire-series"
+  (let [fv (thrift/FireValue* 1 1 1 1)]
+    (pad-fire-series 3 (thrift/TimeSeries* 1 [fv fv]))
+    => (thrift/TimeSeries* 1 3 [fv fv fv])
+    (pad-fire-series 2 (thrift/TimeSeries* 1 [fv fv]))
+    => (thrift/TimeSeries* 1 [fv fv])))
+
+(fact
+  "Test update-fire-series"
+  (let [zero (thrift/FireValue* 0 0 0 0)
+        one (thrift/FireValue* 1 1 1 1)
+        two (thrift/FireValue* 2 2 2 2)
+        new-series (thrift/TimeSeries* 2 [one one])]
+    (update-fire-series 1 3 (thrift/TimeSeries* 1 [one one]) nil)
+    => (thrift/TimeSeries* 1 3 [one one one])
+    (update-fire-series 1 3 (thrift/TimeSeries* 1 [one one]) new-series)
+    => (thrift/TimeSeries* 1 3 [one two two])
+    (update-fire-series 1 3 nil new-series)
+    => (thrift/TimeSeries* 1 3 [zero one one])))
+
+(fact
+  "Test fire-update-query. Only fires with a pedigree after `since`
+   should be added to the previous series."
+  (let [t-res "16"
+        loc (thrift/ModisPixelLocation* "500" 28 8 0 0)
+        fire (thrift/FireValue* 1 1 1 1)
+        mk-chunk (fn [date pedigree]
+                   (thrift/DataChunk* "fire" loc fire "01" :date date :pedigree pedigree))
+        chunk-src [[(mk-chunk "2000-01-01" 1)]
+                   [(mk-chunk "2000-01-18" 2)]]
+        prev-src [["500" 28 8 0 0 (thrift/TimeSeries* START-PERIOD [fire fire])]]
+        two (thrift/FireValue* 2 2 2 2)]
+    (fire-update-query prev-src chunk-src t-res "2000-01-01" "2000-02-02" 1)
+    => (produces [["500" 28 8 0 0 (thrift/TimeSeries* START-PERIOD [fire two two])]])))
@@ -94,3 +94,29 @@
                       (src ?s-res ?modh ?modv ?sample ?line ?val)))]
     (sparse-windower val-src ["?sample" "?line"] [2 3] "?val" 0))
   => (produces [["500" 28 8 0 0 [[10 0] [20 0] [0 0]]]]))
+
+(tabular
+ (fact
+   "pixel-splits covers every line of every tile exactly once, in
+   row ranges no longer than `rows-per-split`."
+   (let [splits (pixel-splits "5000" [[8 6] [10 12]] ?rows)]
+     (count splits) => ?n
+     (every? (fn [[_ _ start end]] (<= (- end start) ?rows)) splits) => true
+     (->> splits
+          (group-by (juxt first second))
+          (vals)
+          (map #(mapcat (fn [[_ _ start end]] (range start end)) %))) => (two-of (range 240))))
+ ?rows ?n
+ 1     480
+ 100   6
+ 240   2
+ 1000  2)
+
+(fact
+  "expand-split emits the sample and line of every pixel in a split."
+  (let [src [[8 6 2 4]]]
+    (<- [?h ?v ?sample ?line]
+        (src ?h ?v ?start ?end)
+        (expand-split ["5000"] ?start ?end :> ?sample ?line)))
+  => (produces (for [h [8] v [6] line [2 3] sample (range 240)]
+                 [h v sample line])))
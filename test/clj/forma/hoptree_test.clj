@@ -45,3 +45,10 @@ well as the own-pixel index -- for a total of 9 indices"
                                   [5 0] [5 1] [5 2]
                                   [6 0] [6 1] [6 2]))))
 
+
+(facts "Z-order indices interleave the bits of the row and column, and
+can be converted back."
+  (rowcol->zindex 1 2) => 6
+  (zindex->rowcol 6) => [1 2]
+  (zindex->rowcol (rowcol->zindex 19200 67200)) => [19200 67200]
+  (global-zindex "500" (TileRowCol* [28 8 0 0])) => (rowcol->zindex 19200 67200))
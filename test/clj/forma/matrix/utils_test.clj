@@ -79,6 +79,11 @@ function, as per the documentation."
  [[10 1] [12 9]] [:start 8 :length 10]  [0 0 1 0 9 0 0 0 0 0]
  [[10 1] [15 9]] [:start 14 :length 3]  [0 9 0])
 
+(fact
+  "Check `conj-fill!`"
+  (persistent! (conj-fill! (transient [1]) 2 0)) => [1 0 0]
+  (persistent! (conj-fill! (transient [1]) 0 0)) => [1])
+
 (fact
   "Check `sparse-prep`"
   (sparse-prep [[3 2]] [[1 1]]) => [[3 1] [2 1]]
@@ -4,7 +4,8 @@
   training data."
   (:use forma.ops.classify :reload)
   (:use cascalog.api
-        [midje sweet cascalog])
+        [midje sweet cascalog]
+        [forma.classify.logistic :only (logistic-prob to-double-rowmat to-double-matrix)])
   (:require [forma.testing :as t]
             [forma.date-time :as date]
             [forma.thrift :as thrift]))
@@ -23,6 +24,18 @@
         unpacked (unpack-feature-vec forma-val neighbor-val)]
     unpacked => [1 1 1 1 1 3.0 3.0 3.0 3.0 1 1 1 1 2.0 3.0 4.0 5.0 6.0 7.0 0.0 0.0]))
 
+(fact "`fill-features!` writes the `unpack-feature-vec` layout into a
+  reusable array, and `feature-matrix` stacks those rows."
+  (let [fire-val (thrift/FireValue* 1 2 3 4)
+        forma-val (thrift/FormaValue* fire-val 3.0 4.0 5.0 6.0)
+        neighbor-val (thrift/NeighborValue* fire-val 1 2.0 3.0 4.0 5.0 6.0 7.0 8.0 9.0)
+        row (double-array feature-count)
+        expected (map double (unpack-feature-vec forma-val neighbor-val))]
+    (vec (fill-features! row forma-val neighbor-val)) => expected
+    (vec (fill-features! row forma-val neighbor-val)) => expected
+    (feature-matrix [[forma-val neighbor-val] [forma-val neighbor-val]])
+    => (to-double-matrix [expected expected])))
+
 (defn- generate-betas
   "Returns a source of the estimated coefficient vectors for each
   ecoregion (and spatial resolution, but this is ignored here)."
@@ -34,7 +47,28 @@
                                 ?hansen ?val ?neighbor-val :> ?beta)
         (:distinct false))))
 
-(fact
-  "Check beta-dict"
-  (let [beta-src [["500" "1" 10]]]
-    (beta-dict beta-src)) => {:1 10})
+(fact "`logistic-score` matches `logistic-prob`."
+  (let [beta [0.5 -0.25 0.1]
+        features [1 2.0 3.0]]
+    (logistic-score (double-array beta) (double-array features))
+    => (first (.toArray (logistic-prob (to-double-rowmat beta)
+                                       (to-double-rowmat features))))))
+
+(fact "Check `beta-table`, and that it survives a round trip to disk."
+  (let [beta-src [["500" 1 [1 2]]
+                  ["500" 10101 [0.5 0.25]]]
+        table (beta-table beta-src)
+        path (str (java.io.File/createTempFile "betas" ".tbl"))
+        as-vecs (fn [t] (into {} (for [[k v] t] [k (vec v)])))]
+    (as-vecs table) => {1 [1.0 2.0] 10101 [0.5 0.25]}
+    (write-beta-table! path table)
+    (as-vecs (read-beta-table path)) => (as-vecs table)
+    (as-vecs (load-beta-table path)) => (as-vecs table)))
+
+(fact "`beta-table-query` writes the beta table from the cluster."
+  (let [beta-src [["500" 1 [1 2]]
+                  ["500" 10101 [0.5 0.25]]]
+        path (str (java.io.File/createTempFile "betas" ".tbl"))]
+    (beta-table-query path beta-src) => (produces [[2]])
+    (into {} (for [[k v] (read-beta-table path)] [k (vec v)]))
+    => {1 [1.0 2.0] 10101 [0.5 0.25]}))
@@ -0,0 +1,54 @@
+(ns forma.postprocess.index-test
+  (:use [forma.postprocess.index] :reload)
+  (:use [midje sweet])
+  (:require [forma.reproject :as r]))
+
+(def rows
+  (vec (for [sample (range 20)
+             line (range 20)
+             date ["2006-01-01" "2006-01-17"]]
+         (let [[lat lon] (r/modis->latlon "500" 28 8 sample line)]
+           [lat lon "IDN" 88500 date (+ sample line)]))))
+
+(def index-path
+  (str (java.io.File/createTempFile "forma" ".idx")))
+
+(def api-partition
+  "The API partition holding `rows`: each pixel's two periods start
+  at 2006-01-01."
+  (let [pixels (for [sample (range 20)
+                     line (range 20)]
+                 [sample line (r/modis->latlon "500" 28 8 sample line)])]
+    {:lat (double-array (map (comp first last) pixels))
+     :lon (double-array (map (comp second last) pixels))
+     :gadm2 (int-array (count pixels) 88500)
+     :start (int-array (count pixels) 138)
+     :probs (vec (for [[sample line] pixels]
+                   (byte-array 2 (byte (+ sample line)))))}))
+
+(write-index! index-path "500" "16" [["IDN" api-partition]] :block-size 16)
+
+(fact "A bounding box around every row returns them all."
+  (bbox-query (open-index index-path) -90 -180 90 180)
+  => (just rows :in-any-order))
+
+(fact "Bounding box queries match a scan of the rows."
+  (let [[lat-min lon-min] (r/modis->latlon "500" 28 8 3 9)
+        [lat-max lon-max] (r/modis->latlon "500" 28 8 7 4)]
+    (bbox-query (open-index index-path) lat-min lon-min lat-max lon-max
+                "2006-01-10" "2006-12-31")
+    => (just (filter (fn [[lat lon _ _ date]]
+                       (and (<= lat-min lat lat-max)
+                            (<= lon-min lon lon-max)
+                            (= date "2006-01-17")))
+                     rows)
+             :in-any-order)))
+
+(fact "Point queries return the rows of the pixel containing the point."
+  (let [[lat lon] (r/modis->latlon "500" 28 8 5 6)]
+    (point-query (open-index index-path) lat lon)
+    => (just [[lat lon "IDN" 88500 "2006-01-01" 11]
+              [lat lon "IDN" 88500 "2006-01-17" 11]]
+             :in-any-order)
+    (point-query (open-index index-path) lat lon "2006-01-02")
+    => [[lat lon "IDN" 88500 "2006-01-17" 11]]))
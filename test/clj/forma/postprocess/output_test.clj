@@ -41,3 +41,41 @@
     (let [NA (symbol "NA")
           ts [NA 0.2 NA 0.4]]
       (clean-probs ts -9999.0) => [[0 10 13 27]]))
+
+(tabular
+ (fact "The `clean-probs` kernel matches the sequence-based definition."
+   (clean-probs ?ts -9999.0) => (clean-probs-seq ?ts -9999.0))
+ ?ts
+ []
+ [0.5]
+ [-9999.0 -9999.0 0.3]
+ [0.9 -9999.0 -9999.0 0.1 0.2]
+ [0 1 0.5 -9999.0 0.25 0.75]
+ [(symbol "NA") 0.2 -9999.0 (symbol "NA") 0.4 0.1 0.6])
+
+(fact "Test `clean-probs-first-hit`."
+  (let [ts [0.05 0.1 0.15 0.2 0.25 0.3 0.35 0.4]]
+    (clean-probs-first-hit ts -9999.0 20) => [[5 8 10 15 20 25 30 35] 4]
+    (clean-probs-first-hit ts -9999.0 50) => [[5 8 10 15 20 25 30 35] nil]))
+
+(tabular
+ (fact "Test `first-crossing` on vectors and arrays."
+   (first-crossing 50 ?series) => ?idx
+   (first-crossing 50 (int-array ?series)) => ?idx
+   (first-crossing 50 (double-array ?series)) => ?idx)
+ ?series ?idx
+ [] -1
+ [10 20 30] -1
+ [10 50 60] 1
+ [60 10 70] 0)
+
+(fact "Test `crossing`."
+  (crossing 50 [10 55 80]) => [1 55 false]
+  (crossing 80 [10 55 80]) => [2 80 true]
+  (crossing 90 [10 55 80]) => nil)
+
+(fact "Test `first-crossings`."
+  (first-crossings [90 50 75] [10 55 80 85 95]) => [4 1 2]
+  (first-crossings [90 50 75] [10 55]) => [nil 1 nil]
+  (first-crossings [50 50] [60]) => [0 0]
+  (first-crossings [] [60]) => [])
@@ -113,6 +113,23 @@ well formed!"
     lat => (roughly 29.90)
     lon => (roughly -115.23 0.01)))
 
+(tabular
+ (fact "Batch reprojection agrees with the per-point functions."
+   (let [lats [29.89583 42.4 -12.345 0.5]
+         lons [-115.2290 -115.1 101.9876 -0.5]
+         [hs vs samples lines :as modis] (latlons->modis ?res
+                                                         (double-array lats)
+                                                         (double-array lons))
+         [lats* lons*] (apply modis->latlons ?res modis)]
+     (map vector hs vs samples lines) => (map (partial latlon->modis ?res)
+                                              lats lons)
+     (map vector lats* lons*) => (map (partial modis->latlon ?res)
+                                      hs vs samples lines)))
+ ?res
+ "250"
+ "500"
+ "1000")
+
 (facts "Bucketing values, as in `bucket`."
   (bucket 0.4 1.3) => 3
   (bucket 0.9 1.3) => 1)
@@ -196,3 +213,35 @@ direction, then half-stepping to the centroid."
 (fact "Test `downsample-latlon` precondition."
   (downsample-latlon "5000" "500" 1 1) => (throws AssertionError)
   (downsample-latlon "500" "5000" 1 1) => [0.9791666666666545 0.9793096704258003])
+
+;; ## Benchmarks
+
+(defn random-latlons
+  "Returns `[lats lons]`, double arrays of `n` random points within
+  the latitudes and longitudes covered by the MODIS tropics."
+  [n]
+  [(double-array (repeatedly n #(- (rand 60) 30)))
+   (double-array (repeatedly n #(- (rand 360) 180)))])
+
+(defn reprojection-throughput
+  "Returns the number of points per second that `latlon->modis` (with
+  `kind` `:point`) or `latlons->modis` (`:batch`) reprojects at `res`,
+  over `n` random points."
+  [kind res n]
+  (let [[^doubles lats ^doubles lons] (random-latlons n)
+        start (System/nanoTime)]
+    (case kind
+      :point (dotimes [i n]
+               (latlon->modis res (aget lats i) (aget lons i)))
+      :batch (latlons->modis res lats lons))
+    (/ (* n 1e9)
+       (- (System/nanoTime) start))))
+
+(defn benchmark-reprojection
+  "Compares the throughput of `latlon->modis` against `latlons->modis`
+  at each resolution, over `n` random points."
+  [n]
+  (into {}
+        (for [res ["250" "500" "1000"]
+              kind [:point :batch]]
+          [[res kind] (reprojection-throughput kind res n)])))
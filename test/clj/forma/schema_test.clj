@@ -149,6 +149,20 @@ truncated on both ends."
                    (thrift/FormaValue* (thrift/FireValue* 2 1 1 2) nodata 4. nodata 6.)]]
     (combine-neighbors nodata neighbors)) => empty-neighbor-val)
 
+(fact
+  "`combine-neighbors` agrees with folding `merge-neighbors`, whether
+   its accumulator is fresh or reused."
+  (let [nodata -9999.0
+        acc (neighbor-accumulator)
+        fold (fn [[x & more]]
+               (reduce (partial merge-neighbors nodata) (neighbor-value x) more))
+        seqs [[bad-forma good-forma good-forma]
+              [good-forma bad-forma good-forma good-forma]
+              [good-forma bad-forma bad-forma]
+              neighbors]]
+    (map (partial combine-neighbors nodata) seqs) => (map fold seqs)
+    (map #(combine-neighbors nodata % acc) seqs) => (map fold seqs)))
+
 (fact
   "Test for `forma-value`"
   (forma-value nil 1. 2. 3. 4.) => (thrift/FormaValue*
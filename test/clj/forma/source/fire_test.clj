@@ -3,7 +3,9 @@
   (:use cascalog.api
         [midje sweet cascalog])
   (:require [forma.testing :as t]
-            [forma.thrift :as thrift]))
+            [forma.thrift :as thrift]
+            [clojure.java.io :as io]
+            [clojure.string :as s]))
 
 (def daily-fires-path
   (t/dev-path "/testdata/FireDaily/MCD14DL.2011074.txt"))
@@ -59,3 +61,99 @@
   "Test `keep-fire`"
   (keep-fire? "500" #{[28 8]} -1 -1) => false
   (keep-fire? "500" #{[28 8]}  1 101) => true)
+
+(defn regex-parse
+  "Parses a fire line the way `fire-source-monthly` and
+  `fire-source-daily` do, for comparison with `parse-fire-line`."
+  [fmt line]
+  (let [[re date-fn idxs] (case fmt
+                            :monthly [#"\s+" monthly-datestring [0 3 4 5 9]]
+                            :daily [#"," daily-datestring [5 0 1 2 8]])
+        fields (s/split line re)
+        [date & nums] (map fields idxs)]
+    (into [(date-fn date)] (map #(Double/parseDouble %) nums))))
+
+(defn fire-lines
+  [path]
+  (with-open [rdr (io/reader path)]
+    (vec (line-seq rdr))))
+
+(fact
+  "Test `field-offsets`"
+  (vec (field-offsets "1,22,333" \,)) => [0 2 5]
+  (vec (field-offsets "1  22 333" nil)) => [0 3 6])
+
+(fact
+  "Test `parse-decimal`"
+  (parse-decimal "a,-16.701,b" 2 10) => -16.701
+  (parse-decimal "5.0       " 0 10) => 5.0
+  (Double/isNaN (parse-decimal "-16.701.1" 0 9)) => true
+  (Double/isNaN (parse-decimal "5.0A" 0 4)) => true)
+
+(fact
+  "Test `parse-fire-date`"
+  (parse-fire-date "03/15/2011" 0 10) => [2011 3 15]
+  (parse-fire-date "20001101" 0 8) => [2000 11 1]
+  (parse-fire-date "2012-11-04" 0 10) => [2012 11 4]
+  (parse-fire-date "YYYYMMDD" 0 8) => nil)
+
+(fact
+  "Test `parse-fire-line`; headers and lines with malformed numbers or
+   extra fields are dropped, as with `valid-fire?`."
+  (parse-fire-line :daily "-16.701,137.752,338.2,1.7,1.3,2012-11-04, 01:25,T,89,5.0       ,298.1,63")
+  => ["2012-11-04" -16.701 137.752 338.2 89.0]
+  (parse-fire-line :daily "-16.701.1,137.752,338.2,1.7,1.3,2012-11-04, 01:25,T,89,5.0       ,298.1,63")
+  => nil
+  (parse-fire-line :daily "0.585,100.415,331.3,1.2,1.1,2012-09-18, 06:40,A,84,5.0A,75,5.0       ,302.4,26.3")
+  => nil
+  (parse-fire-line :monthly "YYYYMMDD HHMM sat lat lon T21 T31 sample FRP conf")
+  => nil)
+
+(tabular
+ (fact
+   "`parse-fire-line` agrees with the regex parsers on the sample files."
+   (let [lines (fire-lines ?path)
+         body (if (= :monthly ?fmt) (rest lines) lines)]
+     (map (partial parse-fire-line ?fmt) body)
+     => (map (partial regex-parse ?fmt) body)))
+ ?fmt     ?path
+ :daily   daily-fires-path
+ :monthly monthly-fires-path)
+
+(fact
+  "Test `fast-fire-source`"
+  (let [src [["YYYYMMDD HHMM sat lat lon T21 T31 sample FRP conf"]
+             ["20001101 0013 T  -5.960  147.138 412.1 290.8   31    55.6   74"]]]
+    (<- [?name ?date ?t-res ?lat ?lon ?temp ?conf ?both ?count]
+        ((fast-fire-source :monthly src) ?name ?date ?t-res ?lat ?lon ?fv)
+        (thrift/unpack ?fv :> ?temp ?conf ?both ?count)))
+  => (produces [["fire" "2000-11-01" "01" -5.96 147.138 1 1 1 1]]))
+
+;; ## Benchmarks
+
+(defn parser-throughput
+  "Returns the number of lines per second that `parse` gets through
+  when applied `reps` times to every line of the fire file at `path`."
+  [parse path reps]
+  (let [lines (fire-lines path)
+        start (System/nanoTime)]
+    (dotimes [_ reps]
+      (doseq [line lines]
+        (parse line)))
+    (/ (* reps (count lines) 1e9)
+       (- (System/nanoTime) start))))
+
+(defn benchmark-fire-parsers
+  "Compares the throughput of `parse-fire-line` against the regex
+  parsers on the monthly and daily sample files."
+  [reps]
+  (into {}
+        (for [[fmt path] {:monthly monthly-fires-path
+                          :daily daily-fires-path}
+              [kind parse] {:fast parse-fire-line
+                            :regex regex-parse}]
+          [[fmt kind]
+           (parser-throughput (fn [line]
+                                (try (parse fmt line)
+                                     (catch Exception _ nil)))
+                              path reps)])))
@@ -69,3 +69,19 @@
   (gadm2->iso 1) => "AFG"
   (gadm2->iso 100000) => "KEN"
   (gadm2->iso -9999) => "UNK")
+
+(fact "Packed ISO tables round-trip through `write-iso-table!`."
+  (let [f (doto (java.io.File/createTempFile "iso" ".bin") .deleteOnExit)]
+    (write-iso-table! f {-2 "BRA" 1 "IDN" 3 "BRA"})
+    (let [table (read-iso-table f)]
+      (map (partial table->iso table) [-3 -2 -1 0 1 2 3 4 nil])
+      => [nil "BRA" nil nil "IDN" nil "BRA" nil nil]
+      (identical? (table->iso table -2) (table->iso table 3)) => true)))
+
+(fact "The packed tables agree with the CSVs they were built from."
+  (every? (fn [line]
+            (let [[iso id] (.split line ",")]
+              (= iso (gadm->iso (read-string id)))))
+          text-map) => true
+  (gadm2->iso 0) => nil
+  (gadm2->iso 300000) => nil)
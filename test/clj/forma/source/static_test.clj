@@ -1,8 +1,10 @@
 (ns forma.source.static-test
   (:use [forma.source.static] :reload)
   (:use cascalog.api
-        midje.sweet)
-  (:require [forma.testing :as t]))
+        [midje sweet cascalog])
+  (:require [forma.testing :as t]
+            [forma.reproject :as r]
+            [cascalog.io :as io]))
 
 ;; TODO: Add a sample ASCII grid, a small one, a textfile, here at
 ;; this path.
@@ -23,3 +25,135 @@
                  :travel [+ -]
                  :step 0.1
                  :nodata -9999})
+
+;; ### Raster-Native Sampling
+
+(defn synthetic-window
+  "Returns a window over the supplied grid cells with the value
+  `(mod (+ (* 7 row) col) 11)` at each cell."
+  [row0 col0 height width]
+  {:row0 row0 :col0 col0 :height height :width width
+   :data (int-array (for [row (range row0 (+ row0 height))
+                          col (range col0 (+ col0 width))]
+                      (mod (+ (* 7 row) col) 11)))})
+
+(defn window-ref
+  [{:keys [row0 col0 height width]} row col]
+  (when (and (< -1 (- row row0) height)
+             (< -1 (- col col0) width))
+    (mod (+ (* 7 row) col) 11)))
+
+(fact
+  "upsample-chunk matches a per-pixel lookup through wgs84-indexer."
+  (let [info {:corner [-180 90] :travel [+ -] :step 0.5 :nodata -9999}
+        window (synthetic-window 150 540 40 60)]
+    (seq (upsample-chunk "1000" 24000 info window 28 8 17 -9999))
+    => (for [line (range 340 360), sample (range 1200)]
+         (let [[row col] (r/wgs84-indexer "1000" info 28 8 sample line)]
+           (or (window-ref window row col) -9999)))
+    (upsample-chunk "1000" 24000 info (synthetic-window 0 0 10 10) 28 8 17 -9999)
+    => nil))
+
+(tabular
+ (fact
+   "downsample-chunk matches aggregating every grid cell assigned to
+   the chunk through modis-indexer."
+   (let [info {:corner [-72 10.5] :travel [+ -] :step 0.01 :nodata -9999}
+         [row-min row-max col-min col-max] (window-bounds "5000" info 11 8 0 239)
+         window (synthetic-window row-min col-min
+                                  (inc (- row-max row-min))
+                                  (inc (- col-max col-min)))
+         lines (range 50 60)
+         cells (for [row (range row-min (inc row-max))
+                     col (range col-min (inc col-max))
+                     :let [[h v sample line] (r/modis-indexer "5000" info row col)]
+                     :when (and (= [h v] [11 8]) (<= 50 line 59))]
+                 [(+ sample (* 240 (- line 50))) (window-ref window row col)])
+         expected (reduce (fn [m [idx val]]
+                            (update-in m [idx] #(if % (?f % val) val)))
+                          {} cells)]
+     (seq (downsample-chunk "5000" 2400 info window 11 8 5 ?agg -9999))
+     => (map #(get expected % -9999) (range 2400))))
+ ?agg ?f
+ :sum +
+ :max max)
+
+(fact
+  "AsciiGrid reads windows out of indexed ASCII grids, clipped to the
+  extent of the grid."
+  (let [f (doto (java.io.File/createTempFile "grid" ".txt") .deleteOnExit)]
+    (spit f (str "ncols 4\n"
+                 "0 1 2 3 4\n"
+                 "1 5 6 7 8\n"
+                 "2 9 10 11 12\n"))
+    (let [grid (open-raster (.getPath f))]
+      (update-in (read-window grid 1 5 1 2) [:data] seq)
+      => {:row0 1 :col0 1 :height 2 :width 2 :data [6 7 10 11]}
+      (update-in (read-window grid 0 0 2 9) [:data] seq)
+      => {:row0 0 :col0 2 :height 1 :width 2 :data [3 4]})))
+
+(fact
+  "ascii->raster writes a binary raster whose windows match those of
+  the ASCII grid it was converted from."
+  (let [ascii (doto (java.io.File/createTempFile "grid" ".txt") .deleteOnExit)
+        raster (doto (java.io.File/createTempFile "grid" ".raster") .deleteOnExit)
+        info {:corner [-180 90] :travel [+ -] :step 0.5 :nodata -9999}]
+    (spit ascii (apply str (for [row (range 7)]
+                             (str row " "
+                                  (apply str (interpose " " (range (* 10 row) (+ 9 (* 10 row)))))
+                                  "\n"))))
+    (ascii->raster (.getPath ascii) (.getPath raster) info :tile-size 4)
+    (let [[text binary] (map (comp open-raster #(.getPath %)) [ascii raster])
+          as-map #(update-in % [:data] seq)]
+      (class binary) => forma.source.static.BinaryRaster
+      (class (binary-raster (.getPath raster))) => forma.source.static.BinaryRaster
+      (binary-raster (.getPath ascii)) => (throws IllegalArgumentException)
+      (dissoc (read-raster-header (.getPath raster)) :travel)
+      => {:ncols 9 :nrows 7 :tile-size 4 :corner [-180.0 90.0] :step 0.5 :nodata -9999}
+      (as-map (read-window binary 0 6 0 8)) => (as-map (read-window text 0 6 0 8))
+      (as-map (read-window binary 2 5 3 7)) => (as-map (read-window text 2 5 3 7))
+      (as-map (read-window binary 5 20 7 20)) => (as-map (read-window text 5 20 7 20)))))
+
+;; ### Static Attribute Store
+
+(fact
+  "Packed static tiles survive a round trip, block by block."
+  (let [f (doto (java.io.File/createTempFile "static" ".tile") .deleteOnExit)
+        pixels [[0 25 1 10101 0 4]
+                [5 30 2 10102 1 5]
+                [2400 80 3 10103 0 6]]]
+    (write-static-tile! (.getPath f) 2 (.iterator pixels)) => 3
+    (let [{:keys [n block-size firsts] :as index} (read-static-index (.getPath f))
+          [idxs0 cols0] (read-static-block (.getPath f) index 0)
+          [idxs1 cols1] (read-static-block (.getPath f) index 1)]
+      [n block-size (seq firsts)] => [3 2 [0 2400]]
+      (seq idxs0) => [0 5]
+      (map seq cols0) => [[25 30] [1 2] [10101 10102] [0 1] [4 5]]
+      (seq idxs1) => [2400]
+      (map seq cols1) => [[80] [3] [10103] [0] [6]])
+    (read-static-index (str (.getPath f) "-missing")) => nil))
+
+(def static-src
+  [["500" 28 8 0 0 25 1 10101 0 4]
+   ["500" 28 8 5 0 30 2 10102 1 5]
+   ["500" 28 8 0 1 80 3 10103 0 6]
+   ["500" 29 8 0 0 50 4 10104 1 7]])
+
+(fact
+  "A static store answers the same lookups as a join against the
+  static source it was packed from."
+  (io/with-fs-tmp [_ tmp]
+    (?- (hfs-textline (str tmp "/_tiles"))
+        (static-store-query tmp static-src))
+    (static-store? tmp) => true
+    (let [pixels [["500" 28 8 0 0] ["500" 28 8 0 1]
+                  ["500" 28 8 1 1] ["500" 30 8 0 0]]
+          query (fn [static-src]
+                  (let [static (static-attrs static-src)]
+                    (<- [?s-res ?h ?v ?s ?l ?vcf ?ecoid ?coast-dist]
+                        (pixels ?s-res ?h ?v ?s ?l)
+                        (static ?s-res ?h ?v ?s ?l :> ?vcf ?gadm ?ecoid ?hansen ?coast-dist))))]
+      (query tmp) => (produces [["500" 28 8 0 0 25 10101 4]
+                                ["500" 28 8 0 1 80 10103 6]])
+      (query static-src) => (produces [["500" 28 8 0 0 25 10101 4]
+                                       ["500" 28 8 0 1 80 10103 6]]))))
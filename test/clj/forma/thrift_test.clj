@@ -10,6 +10,7 @@
             ModisPixelLocation ShortArray TimeSeries FormaArray
             NeighborValue Pedigree]
            [org.apache.thrift TBase TUnion]
+           [org.apache.thrift.meta_data FieldMetaData]
            [java.util ArrayList]))
 
 (fact "Check creating and unpacking NeighborValue objects."
@@ -119,4 +120,55 @@
                                 -9999. 1. 1. 1.)) => true
   (obj-contains-nodata? -9999. (FormaValue*
                                 (FireValue* 1 1 1 1)
-                                  1. 1. 1. 1.)) => false)
+                                  1. 1. 1. 1.)) => false
+  (obj-contains-nodata? -9999. (NeighborValue* (FireValue* 1 1 1 1) 1
+                                               1. 1. 1. 1. 1. 1. 1. -9999.)) => true
+  (obj-contains-nodata? -9999. (NeighborValue* (FireValue* 1 1 1 1) 1
+                                               1. 1. 1. 1. 1. 1. 1. 1.)) => false
+  (obj-contains-nodata? -9999. (TimeSeries* 1 3 [1 2 3])) => false)
+
+(defn metadata-unpack
+  "Unpacks a Thrift struct by walking its field metadata, as `unpack`
+  used to."
+  [^TBase x]
+  (vec (map #(.getFieldValue x %)
+            (keys (FieldMetaData/getStructMetaDataMap (class x))))))
+
+(def sample-structs
+  (let [fire (FireValue* 1 2 3 4)]
+    [(ModisPixelLocation* "500" 28 8 100 200)
+     (ModisChunkLocation* "500" 28 8 10 24000)
+     fire
+     (TimeSeries* 1 3 [1.0 2.0 3.0])
+     (FormaValue* fire 1. 2. 3. 4.)
+     (DataChunk* "fire" (ModisPixelLocation* "500" 28 8 100 200) fire "01"
+                 :date "2001-01-01" :pedigree 1)]))
+
+(fact "Unpacking through the getters matches the metadata walk."
+  (map unpack sample-structs) => (map metadata-unpack sample-structs)
+
+  "NeighborValue leaves out the deprecated minParamBreak."
+  (unpack (NeighborValue* (FireValue* 1 2 3 4) 2 1. 2. 3. 4. 5. 6. 7. 8.))
+  => [(FireValue* 1 2 3 4) 2 1. 2. 3. 4. 5. 6. 7. 8.]
+
+  "Zero-valued fields are kept."
+  (unpack (NeighborValue* (FireValue* 0 0 0 0) 0 0. 0. 0. 0. 0. 0. 0. 0.))
+  => [(FireValue* 0 0 0 0) 0 0. 0. 0. 0. 0. 0. 0. 0.])
+
+;; ## Benchmarks
+
+(defn benchmark-unpack
+  "Returns the microseconds per call taken by `unpack` and by
+  `metadata-unpack` on each of the sample structs, plus a
+  NeighborValue."
+  [reps]
+  (let [usecs (fn [f x]
+                (let [start (System/nanoTime)]
+                  (dotimes [_ reps] (f x))
+                  (/ (- (System/nanoTime) start) (* reps 1e3))))]
+    (into {}
+          (for [x (conj sample-structs
+                        (NeighborValue* (FireValue* 1 2 3 4) 2 1. 2. 3. 4. 5. 6. 7. 8.))]
+            [(.getSimpleName (class x))
+             {:unpack (usecs unpack x)
+              :metadata (usecs metadata-unpack x)}]))))